@@ -0,0 +1,33 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'impl.krypt.asn1.ArrayOutputStream'
+
+describe "ArrayOutputStream" do
+  def bytes(s)
+    s.to_java_bytes
+  end
+
+  it "hands out the filled array" do
+    out = ArrayOutputStream.new(3)
+    out.write(bytes("\x01\x02"), 0, 2)
+    out.write(3)
+    String.from_java_bytes(out.buffer).should == "\x01\x02\x03"
+  end
+
+  it "rejects writing beyond its size" do
+    out = ArrayOutputStream.new(1)
+    out.write(1)
+    lambda { out.write(2) }.should raise_error(java.io.IOException)
+    lambda { out.write(bytes("\x02"), 0, 1) }.should raise_error(java.io.IOException)
+  end
+
+  it "rejects handing out an array that is not filled" do
+    out = ArrayOutputStream.new(2)
+    out.write(1)
+    lambda { out.buffer }.should raise_error(java.lang.IllegalStateException)
+  end
+
+  it "rejects a negative size" do
+    lambda { ArrayOutputStream.new(-1) }.should raise_error(java.lang.IllegalArgumentException)
+  end
+end
@@ -0,0 +1,74 @@
+require 'krypt'
+require 'stringio'
+
+describe "Krypt::ASN1 encoding" do
+  class CountingEnumerable
+    include Enumerable
+    attr_reader :iterations
+
+    def initialize(*values)
+      @values = values
+      @iterations = 0
+    end
+
+    def each(&block)
+      @iterations += 1
+      @values.each(&block)
+    end
+  end
+
+  def int(i)
+    Krypt::ASN1::Integer.new(i)
+  end
+
+  it "computes the lengths of nested definite values" do
+    seq = Krypt::ASN1::Sequence.new([Krypt::ASN1::Sequence.new([int(1), int(2)]), Krypt::ASN1::Null.new])
+    seq.to_der.should == "\x30\x0a\x30\x06\x02\x01\x01\x02\x01\x02\x05\x00"
+  end
+
+  it "uses long form lengths where necessary" do
+    seq = Krypt::ASN1::Sequence.new([Krypt::ASN1::OctetString.new("a" * 200)])
+    der = seq.to_der
+    der[0, 6].should == "\x30\x81\xcb\x04\x81\xc8"
+    der.size.should == 206
+  end
+
+  it "adds a closing END OF CONTENTS to infinite length values" do
+    seq = Krypt::ASN1::Sequence.new([int(1)])
+    seq.infinite_length = true
+    seq.to_der.should == "\x30\x80\x02\x01\x01\x00\x00"
+  end
+
+  it "writes the same encoding to an IO as to_der" do
+    seq = Krypt::ASN1::Sequence.new([int(1), Krypt::ASN1::OctetString.new("abc")])
+    io = StringIO.new
+    seq.encode_to(io)
+    io.string.should == seq.to_der
+  end
+
+  it "iterates a non-Array Enumerable value once" do
+    values = CountingEnumerable.new(int(1), int(2))
+    seq = Krypt::ASN1::Sequence.new(values)
+    seq.to_der.should == "\x30\x06\x02\x01\x01\x02\x01\x02"
+    values.iterations.should == 1
+  end
+
+  it "iterates a non-Array Enumerable value of infinite length once" do
+    values = CountingEnumerable.new(int(1))
+    seq = Krypt::ASN1::Sequence.new(values)
+    seq.infinite_length = true
+    seq.to_der.should == "\x30\x80\x02\x01\x01\x00\x00"
+    values.iterations.should == 1
+  end
+
+  it "iterates a non-Array Enumerable SET value once" do
+    values = CountingEnumerable.new(int(2), int(1))
+    set = Krypt::ASN1::Set.new(values)
+    set.to_der.should == "\x31\x06\x02\x01\x01\x02\x01\x02"
+    values.iterations.should == 1
+  end
+
+  it "rejects components that are not ASN1Data" do
+    lambda { Krypt::ASN1::Sequence.new([1]).to_der }.should raise_error
+  end
+end
@@ -0,0 +1,73 @@
+require 'krypt'
+
+describe "Krypt::ASN1 cached encodings" do
+  def der(hex)
+    [hex.join('')].pack('H*')
+  end
+
+  # SEQUENCE { SEQUENCE { INTEGER 1 }, SEQUENCE { OCTET STRING 'A' } } in BER
+  let(:raw) { der(%w{30 80 30 03 02 01 01 30 80 04 01 41 00 00 00 00}) }
+
+  it "writes unchanged decoded values as they were parsed" do
+    Krypt::ASN1.decode_der(raw).to_der.should == raw
+  end
+
+  it "keeps the encoding of unchanged siblings when a nested value changes" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.value[0].value[0].value = 2
+    asn1.to_der.should == der(%w{30 80 30 03 02 01 02 30 80 04 01 41 00 00 00 00})
+  end
+
+  it "re-encodes ancestors when a tag changes" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.value[0].value[0].tag = 10
+    asn1.to_der.should == der(%w{30 80 30 03 0a 01 01 30 80 04 01 41 00 00 00 00})
+  end
+
+  it "re-encodes ancestors when the length encoding changes" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.value[1].infinite_length = false
+    asn1.to_der.should == der(%w{30 80 30 03 02 01 01 30 03 04 01 41 00 00})
+  end
+
+  it "notices components appended to the value Array" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.value[0].value << Krypt::ASN1::Null.new
+    asn1.to_der.should == der(%w{30 80 30 05 02 01 01 05 00 30 80 04 01 41 00 00 00 00})
+  end
+
+  it "notices components replaced in the value Array" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.value[0].value[0] = Krypt::ASN1::Null.new
+    asn1.to_der.should == der(%w{30 80 30 02 05 00 30 80 04 01 41 00 00 00 00})
+  end
+
+  it "notices a replaced value" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.value[1].value = [Krypt::ASN1::Null.new]
+    asn1.to_der.should == der(%w{30 80 30 03 02 01 01 30 80 05 00 00 00 00 00})
+  end
+
+  it "encodes changes made after a previous encoding" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    asn1.to_der
+    asn1.value[0].value[0].value = 3
+    asn1.to_der.should == der(%w{30 80 30 03 02 01 03 30 80 04 01 41 00 00 00 00})
+    asn1.value[0].value[0].value = 4
+    asn1.to_der.should == der(%w{30 80 30 03 02 01 04 30 80 04 01 41 00 00 00 00})
+  end
+
+  it "does not change an encoding that was returned before" do
+    asn1 = Krypt::ASN1.decode_der(raw)
+    first = asn1.to_der
+    asn1.value[0].value[0].value = 2
+    asn1.to_der
+    first.should == raw
+  end
+
+  it "sorts a decoded SET once its contents changed" do
+    set = Krypt::ASN1.decode_der(der(%w{31 03 02 01 02}))
+    set.value << Krypt::ASN1::Integer.new(1)
+    set.to_der.should == der(%w{31 06 02 01 01 02 01 02})
+  end
+end
@@ -0,0 +1,61 @@
+require 'krypt'
+
+describe "Krypt::ASN1 parallel decoding" do
+  def der(hex)
+    [hex.join('')].pack('H*')
+  end
+
+  def sequence_of_integers(n)
+    Krypt::ASN1::Sequence.new((1..n).map { |i| Krypt::ASN1::Integer.new(i) }).to_der
+  end
+
+  def decode_children(raw)
+    Krypt::ASN1.decode_der(raw).value.map { |v| [v.tag, v.value] }
+  end
+
+  after do
+    Krypt::ASN1.parallel_threshold = nil
+  end
+
+  it "is disabled by default" do
+    Krypt::ASN1.parallel_threshold.should be_nil
+  end
+
+  it "rejects thresholds that are not positive" do
+    lambda { Krypt::ASN1.parallel_threshold = 0 }.should raise_error(ArgumentError)
+  end
+
+  it "produces the same ordered children as sequential decoding" do
+    raw = sequence_of_integers(500)
+    sequential = decode_children(raw)
+    Krypt::ASN1.parallel_threshold = 1
+    decode_children(raw).should == sequential
+    sequential.size.should == 500
+    sequential.last.should == [Krypt::ASN1::INTEGER, 500]
+  end
+
+  it "drops only the closing END OF CONTENTS of infinite length values" do
+    raw = der(%w{30 80 02 01 01 02 01 02 00 00})
+    sequential = decode_children(raw)
+    Krypt::ASN1.parallel_threshold = 1
+    decode_children(raw).should == sequential
+    sequential.should == [[Krypt::ASN1::INTEGER, 1], [Krypt::ASN1::INTEGER, 2]]
+  end
+
+  it "keeps END OF CONTENTS that do not close the value like sequential decoding" do
+    raw = der(%w{30 08 02 01 01 00 00 02 01 02})
+    sequential = decode_children(raw)
+    Krypt::ASN1.parallel_threshold = 1
+    decode_children(raw).should == sequential
+    sequential.size.should == 3
+  end
+
+  it "keeps nested infinite length children intact" do
+    raw = der(%w{30 80 30 80 02 01 01 00 00 02 01 02 00 00})
+    Krypt::ASN1.parallel_threshold = 1
+    children = Krypt::ASN1.decode_der(raw).value
+    children.size.should == 2
+    children[0].value.map { |v| v.value }.should == [1]
+    children[1].value.should == 2
+  end
+end
@@ -0,0 +1,68 @@
+require 'krypt'
+
+describe "Krypt::ASN1::Set encoding" do
+  def int(i)
+    Krypt::ASN1::Integer.new(i)
+  end
+
+  def der(hex)
+    [hex.join('')].pack('H*')
+  end
+
+  it "sorts components by their tag numbers" do
+    set = Krypt::ASN1::Set.new([Krypt::ASN1::Null.new, Krypt::ASN1::OctetString.new(""), int(1)])
+    set.to_der.should == der(%w{31 07 02 01 01 04 00 05 00})
+  end
+
+  it "sorts components by their tag classes before their tag numbers" do
+    tagged = Krypt::ASN1::ASN1Data.new([Krypt::ASN1::Null.new], 0, :CONTEXT_SPECIFIC)
+    set = Krypt::ASN1::Set.new([tagged, Krypt::ASN1::OctetString.new("")])
+    set.to_der.should == der(%w{31 06 04 00 a0 02 05 00})
+    Krypt::ASN1.validate_der(set.to_der).should be_true
+  end
+
+  it "sorts components with the same tag by their encodings" do
+    set = Krypt::ASN1::Set.new([int(3), int(256), int(1)])
+    set.to_der.should == der(%w{31 0a 02 01 01 02 01 03 02 02 01 00})
+  end
+
+  it "brings the value Array into the sorted order" do
+    values = [int(2), int(1)]
+    set = Krypt::ASN1::Set.new(values)
+    set.to_der
+    set.value.map { |v| v.value }.should == [1, 2]
+  end
+
+  it "keeps END OF CONTENTS last in infinite length SETs" do
+    set = Krypt::ASN1::Set.new([int(2), Krypt::ASN1::EndOfContents.new, int(1)])
+    set.infinite_length = true
+    set.to_der.should == der(%w{31 80 02 01 01 02 01 02 00 00})
+  end
+
+  it "adds a missing END OF CONTENTS to infinite length SETs" do
+    set = Krypt::ASN1::Set.new([int(2), int(1)])
+    set.infinite_length = true
+    set.to_der.should == der(%w{31 80 02 01 01 02 01 02 00 00})
+  end
+
+  it "encodes an empty SET" do
+    Krypt::ASN1::Set.new([]).to_der.should == der(%w{31 00})
+  end
+
+  it "produces encodings accepted by validate_der" do
+    set = Krypt::ASN1::Set.new((1..50).map { |i| int((i * 7919) % 1000) })
+    Krypt::ASN1.validate_der(set.to_der).should be_true
+  end
+
+  it "keeps the order of a decoded SET that was not modified" do
+    raw = der(%w{31 06 02 01 02 02 01 01})
+    Krypt::ASN1.decode_der(raw).to_der.should == raw
+  end
+
+  it "orders components like <=>" do
+    a = int(1)
+    b = Krypt::ASN1::OctetString.new("")
+    (a <=> b).should == -1
+    Krypt::ASN1::Set.new([b, a]).to_der.should == der(%w{31 05 02 01 01 04 00})
+  end
+end
@@ -0,0 +1,29 @@
+require 'krypt'
+
+describe "Krypt::ASN1 to_der" do
+  it "encodes primitive values" do
+    Krypt::ASN1::Integer.new(1).to_der.should == "\x02\x01\x01"
+  end
+
+  it "encodes empty values" do
+    Krypt::ASN1::Null.new.to_der.should == "\x05\x00"
+  end
+
+  it "returns a String of the encoded length" do
+    der = Krypt::ASN1::OctetString.new("a" * 70000).to_der
+    der.size.should == 70005
+    der[0, 5].should == "\x04\x83\x01\x11\x70"
+  end
+
+  it "returns the parsed encoding of a decoded value" do
+    der = "\x30\x06\x02\x01\x01\x02\x01\x02"
+    Krypt::ASN1.decode_der(der).to_der.should == der
+  end
+
+  it "returns independent Strings for the same value" do
+    int = Krypt::ASN1::Integer.new(1)
+    first = int.to_der
+    first << "x"
+    int.to_der.should == "\x02\x01\x01"
+  end
+end
@@ -0,0 +1,85 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'java.io.ByteArrayOutputStream'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.BerToDerConverter'
+
+describe "BerToDerConverter" do
+  def convert(hex, threshold = BerToDerConverter::DEFAULT_SPILL_THRESHOLD)
+    raw = [hex.join('')].pack('H*').to_java_bytes
+    out = ByteArrayOutputStream.new
+    BerToDerConverter.new(threshold).convert(ByteArrayInputStream.new(raw), out)
+    String.from_java_bytes(out.to_byte_array).unpack('H*')[0]
+  end
+
+  it "replaces infinite lengths by definite ones" do
+    convert(%w{30 80 02 01 01 30 80 05 00 00 00 00 00}).should == "300702010130020500"
+  end
+
+  it "encodes lengths in their minimal form" do
+    convert(%w{04 81 02 aa bb}).should == "0402aabb"
+    convert(%w{30 82 00 03 02 01 01}).should == "3003020101"
+  end
+
+  it "merges the chunks of constructed strings" do
+    convert(%w{24 80 04 01 aa 24 03 04 01 bb 00 00}).should == "0402aabb"
+  end
+
+  it "merges BIT STRING chunks and keeps the unused bits of the last one" do
+    convert(%w{23 80 03 02 00 aa 03 02 04 b0 00 00}).should == "030304aab0"
+  end
+
+  it "keeps complex tags" do
+    convert(%w{bf 81 00 80 02 01 01 00 00}).should == "bf810003020101"
+  end
+
+  it "converts several top-level values" do
+    convert(%w{30 80 00 00 02 01 05}).should == "3000020105"
+  end
+
+  it "produces the same result when spilling to a temporary file" do
+    ber = %w{30 80 24 80 04 01 aa 04 01 bb 00 00 30 80 02 01 01 00 00 00 00}
+    convert(ber, 0).should == convert(ber)
+    convert(ber, 0).should == "30090402aabb3003020101"
+  end
+
+  it "sorts the components of a SET by their encodings" do
+    convert(%w{31 80 02 01 02 02 01 01 00 00}).should == "3106020101020102"
+    convert(%w{31 80 04 02 01 01 04 01 01 00 00}).should == "310704010104020101"
+  end
+
+  it "sorts the components of a SET by tag class first" do
+    convert(%w{31 06 a0 02 05 00 04 00}).should == "31060400a0020500"
+  end
+
+  it "sorts SET components after converting them" do
+    convert(%w{31 0a 24 80 04 01 02 00 00 04 01 01}).should == "3106040101040102"
+  end
+
+  it "sorts nested SETs" do
+    ber = %w{30 80 31 80 31 03 02 01 02 31 03 02 01 01 00 00 00 00}
+    convert(ber).should == "300c310a31030201013103020102"
+    convert(ber, 0).should == "300c310a31030201013103020102"
+  end
+
+  it "leaves implicitly tagged SETs as they are" do
+    convert(%w{a1 06 02 01 02 02 01 01}).should == "a106020102020101"
+  end
+
+  it "rejects unterminated infinite length values" do
+    lambda { convert(%w{30 80 02 01 01}) }.should raise_error(ParseException)
+  end
+
+  it "rejects contents exceeding the enclosing value" do
+    lambda { convert(%w{30 03 02 02 01 01}) }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS at the top level" do
+    lambda { convert(%w{00 00}) }.should raise_error(ParseException)
+  end
+
+  it "rejects chunks with a different tag" do
+    lambda { convert(%w{24 80 02 01 01 00 00}) }.should raise_error(ParseException)
+  end
+end
@@ -0,0 +1,59 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.ParserFactory'
+
+describe "Bulk reads from infinite length value streams" do
+  subject {
+    ParserFactory.new.new_header_parser
+  }
+
+  def raw(hex)
+    [hex.join('')].pack('H*')
+  end
+
+  def stream(hex)
+    ByteArrayInputStream.new(raw(hex).to_java_bytes)
+  end
+
+  def read_into(value, size)
+    buf = Java::byte[size].new
+    n = value.read(buf, 0, size)
+    [n, n > 0 ? String.from_java_bytes(buf)[0, n] : ""]
+  end
+
+  it "fills the buffer across chunk boundaries" do
+    io = stream(%w{24 80 04 02 01 02 04 01 03 04 02 04 05 00 00})
+    value = subject.next(io).get_value_stream(true)
+    read_into(value, 5).should == [5, "\x01\x02\x03\x04\x05"]
+    value.read.should == -1
+  end
+
+  it "returns fewer bytes once the value ends" do
+    io = stream(%w{24 80 04 01 01 04 01 02 00 00 05 00})
+    value = subject.next(io).get_value_stream(true)
+    read_into(value, 10).should == [2, "\x01\x02"]
+    read_into(value, 10).first.should == -1
+  end
+
+  it "copies chunk headers in raw mode" do
+    encoding = %w{04 81 80} + %w{aa} * 128 + %w{04 01 01 00 00}
+    io = stream(%w{24 80} + encoding)
+    value = subject.next(io).get_value_stream(false)
+    read_into(value, 200).should == [136, raw(encoding)]
+  end
+
+  it "continues a header that did not fit into the buffer" do
+    io = stream(%w{24 80 04 81 01 07 00 00})
+    value = subject.next(io).get_value_stream(false)
+    read_into(value, 2).should == [2, "\x04\x81"]
+    read_into(value, 10).should == [4, "\x01\x07\x00\x00"]
+  end
+
+  it "reads nothing for a zero length request" do
+    io = stream(%w{24 80 04 01 01 00 00})
+    value = subject.next(io).get_value_stream(true)
+    value.read(Java::byte[1].new, 0, 0).should == 0
+    value.read.should == 1
+  end
+end
@@ -0,0 +1,55 @@
+require 'krypt'
+require 'stringio'
+
+describe "Krypt::ASN1.decode_der_each" do
+  let(:raw) { "\x02\x01\x01\x04\x01\x41\x30\x02\x05\x00" }
+
+  def collect(source)
+    values = []
+    Krypt::ASN1.decode_der_each(source) { |v| values << v }
+    values
+  end
+
+  it "yields every value of a String" do
+    collect(raw).map { |v| v.tag }.should == [2, 4, 16]
+  end
+
+  it "yields every value of an IO" do
+    collect(StringIO.new(raw)).map { |v| v.tag }.should == [2, 4, 16]
+  end
+
+  it "yields values with their contents" do
+    values = collect(raw)
+    values[0].value.should == 1
+    values[1].value.should == "A"
+    values[2].to_der.should == "\x30\x02\x05\x00"
+  end
+
+  it "yields values of infinite length" do
+    values = collect("\x30\x80\x02\x01\x01\x00\x00\x05\x00")
+    values.map { |v| v.tag }.should == [16, 5]
+    values[0].infinite_length.should be_true
+  end
+
+  it "yields nothing for empty input" do
+    collect("").should be_empty
+  end
+
+  it "returns an Enumerator without a block" do
+    enum = Krypt::ASN1.decode_der_each(raw)
+    enum.should be_an_instance_of Enumerator
+    enum.map { |v| v.tag }.should == [2, 4, 16]
+  end
+
+  it "yields the values before a truncated value, then raises a ParseError" do
+    values = []
+    lambda {
+      Krypt::ASN1.decode_der_each("\x05\x00\x04\x05\x01") { |v| values << v }
+    }.should raise_error(Krypt::ASN1::ParseError)
+    values.size.should == 1
+  end
+
+  it "raises a ParseError for sources that cannot be read" do
+    lambda { Krypt::ASN1.decode_der_each(nil) { } }.should raise_error(Krypt::ASN1::ParseError)
+  end
+end
@@ -0,0 +1,67 @@
+require 'krypt'
+require 'stringio'
+
+describe "Krypt::ASN1.decode_der with offset and length" do
+  let(:raw) { "\x05\x00\x02\x01\x07\x04\x01\x41" }
+
+  it "decodes the value starting at the offset" do
+    asn1 = Krypt::ASN1.decode_der(raw, 2)
+    asn1.tag.should == 2
+    asn1.value.should == 7
+  end
+
+  it "decodes within the given length" do
+    asn1 = Krypt::ASN1.decode_der(raw, 5, 3)
+    asn1.tag.should == 4
+    asn1.value.should == "A"
+  end
+
+  it "ignores a nil offset" do
+    Krypt::ASN1.decode_der(raw, nil).tag.should == 5
+  end
+
+  it "starts at the beginning for a nil offset with a length" do
+    asn1 = Krypt::ASN1.decode_der(raw, nil, 2)
+    asn1.tag.should == 5
+    lambda { Krypt::ASN1.decode_der(raw, nil, 1) }.should raise_error(Krypt::ASN1::ParseError)
+  end
+
+  it "raises an ArgumentError for a length beyond the String without an offset" do
+    lambda { Krypt::ASN1.decode_der(raw, nil, 10) }.should raise_error(ArgumentError)
+  end
+
+  it "raises a ParseError when the value exceeds the length" do
+    lambda { Krypt::ASN1.decode_der(raw, 2, 2) }.should raise_error(Krypt::ASN1::ParseError)
+  end
+
+  it "raises an ArgumentError for an offset beyond the String" do
+    lambda { Krypt::ASN1.decode_der(raw, 9) }.should raise_error(ArgumentError)
+  end
+
+  it "raises an ArgumentError for a length beyond the String" do
+    lambda { Krypt::ASN1.decode_der(raw, 5, 4) }.should raise_error(ArgumentError)
+  end
+
+  it "raises an ArgumentError for a negative offset" do
+    lambda { Krypt::ASN1.decode_der(raw, -1) }.should raise_error(ArgumentError)
+  end
+
+  it "raises an ArgumentError for an offset with an IO" do
+    lambda { Krypt::ASN1.decode_der(StringIO.new(raw), 2) }.should raise_error(ArgumentError)
+  end
+
+  it "raises an ArgumentError for a length with an IO" do
+    lambda { Krypt::ASN1.decode_der(StringIO.new(raw), nil, 2) }.should raise_error(ArgumentError)
+  end
+
+  it "does not see modifications of the String made after decoding" do
+    der = "\x04\x01\x41"
+    asn1 = Krypt::ASN1.decode_der(der, 0)
+    der[2] = "B"
+    asn1.value.should == "A"
+  end
+
+  it "raises a ParseError for nil" do
+    lambda { Krypt::ASN1.decode_der(nil) }.should raise_error(Krypt::ASN1::ParseError)
+  end
+end
@@ -0,0 +1,104 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.TagClass'
+java_import 'impl.krypt.asn1.parser.DerIndex'
+
+describe "DerIndex" do
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  def value(index, node)
+    buffer = index.get_value(node)
+    bytes = Java::byte[buffer.remaining].new
+    buffer.get(bytes)
+    String.from_java_bytes(bytes)
+  end
+
+  # SEQUENCE { INTEGER 1, SEQUENCE { OCTET STRING aa bb, NULL }, [0] { INTEGER 2 } }
+  let(:der) { raw(%w{30 10 02 01 01 30 06 04 02 aa bb 05 00 a0 03 02 01 02}) }
+  subject { DerIndex.build(der) }
+
+  it "indexes all nodes in document order" do
+    subject.size.should == 7
+    (0...7).map { |n| subject.get_tag(n) }.should == [16, 2, 16, 4, 5, 0, 2]
+    (0...7).map { |n| subject.get_depth(n) }.should == [0, 1, 1, 2, 2, 1, 2]
+    (0...7).map { |n| subject.get_parent(n) }.should == [-1, 0, 0, 2, 2, 0, 5]
+  end
+
+  it "records header and value offsets" do
+    subject.get_header_offset(3).should == 7
+    subject.get_value_offset(3).should == 9
+    subject.get_length(3).should == 2
+    subject.get_end_offset(3).should == 11
+    value(subject, 3).should == "\xAA\xBB"
+  end
+
+  it "records tag classes and the constructed flag" do
+    subject.get_tag_class(5).should == TagClass::CONTEXT_SPECIFIC
+    subject.is_constructed(5).should be_true
+    subject.is_constructed(6).should be_false
+  end
+
+  it "gives indexed access to children" do
+    subject.get_child_count(0).should == 3
+    subject.get_child(0, 0).should == 1
+    subject.get_child(0, 1).should == 2
+    subject.get_child(0, 2).should == 5
+    subject.get_child(0, 3).should == -1
+    subject.get_child(2, 1).should == 4
+    subject.get_first_child(1).should == -1
+  end
+
+  it "links siblings" do
+    subject.get_next_sibling(1).should == 2
+    subject.get_next_sibling(2).should == 5
+    subject.get_next_sibling(5).should == -1
+  end
+
+  it "returns the complete encoding of a node" do
+    encoding = subject.get_encoding(2)
+    encoding.remaining.should == 8
+  end
+
+  it "indexes several top-level values" do
+    index = DerIndex.build(raw(%w{02 01 01 30 03 02 01 02}))
+    index.size.should == 3
+    index.get_next_sibling(0).should == 1
+    index.get_parent(2).should == 1
+  end
+
+  it "indexes infinite length values without their END OF CONTENTS" do
+    index = DerIndex.build(raw(%w{30 80 02 01 01 00 00 05 00}))
+    index.size.should == 3
+    index.is_infinite_length(0).should be_true
+    index.get_length(0).should == 3
+    index.get_end_offset(0).should == 7
+    index.get_next_sibling(0).should == 2
+  end
+
+  it "rejects lengths beyond the buffer" do
+    lambda { DerIndex.build(raw(%w{30 05 02 01 01})) }.should raise_error(ParseException)
+  end
+
+  it "rejects lengths that do not fit into an int" do
+    lambda { DerIndex.build(raw(%w{04 84 80 00 00 00})) }.should raise_error(ParseException)
+  end
+
+  it "rejects nested values exceeding their parent" do
+    lambda { DerIndex.build(raw(%w{30 03 04 02 aa bb})) }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS at the top level" do
+    lambda { DerIndex.build(raw(%w{05 00 00 00})) }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS inside definite length values" do
+    lambda { DerIndex.build(raw(%w{30 04 05 00 00 00})) }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS with a value" do
+    lambda { DerIndex.build(raw(%w{30 80 00 01 00})) }.should raise_error(ParseException)
+  end
+end
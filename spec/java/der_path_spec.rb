@@ -0,0 +1,66 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+java_import 'impl.krypt.asn1.parser.DerPath'
+
+describe "DerPath" do
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  def extract(hex, *path)
+    DerPath.extract(ArrayInputStream.new(raw(hex)), path.to_java(:int))
+  end
+
+  # SEQUENCE { INTEGER 1, SEQUENCE { OCTET STRING aa bb, NULL } }
+  let(:der) { %w{30 0b 02 01 01 30 06 04 02 aa bb 05 00} }
+
+  it "selects a nested element" do
+    header = extract(der, 0, 1, 0)
+    header.tag.tag.should == 4
+    String.from_java_bytes(header.value).should == "\xAA\xBB"
+  end
+
+  it "selects elements from streams" do
+    header = DerPath.extract(ByteArrayInputStream.new(raw(der)), [0, 0].to_java(:int))
+    String.from_java_bytes(header.value).should == "\x01"
+  end
+
+  it "selects elements of infinite length values" do
+    header = extract(%w{30 80 02 01 01 04 01 aa 00 00}, 0, 1)
+    String.from_java_bytes(header.value).should == "\xAA"
+  end
+
+  it "returns nil for paths that do not exist" do
+    extract(der, 0, 2).should be_nil
+    extract(der, 1).should be_nil
+    extract(der, 0, 0, 0).should be_nil
+    extract(%w{30 80 02 01 01 00 00}, 0, 1).should be_nil
+  end
+
+  it "rejects an empty path" do
+    lambda { extract(der) }.should raise_error(java.lang.IllegalArgumentException)
+  end
+
+  it "rejects negative indexes" do
+    lambda { extract(der, 0, -1) }.should raise_error(java.lang.IllegalArgumentException)
+  end
+
+  it "rejects a target whose value exceeds the enclosing value" do
+    lambda { extract(%w{30 05 02 01 01 04 05 01 02 03 04 05}, 0, 1) }.should raise_error(ParseException)
+  end
+
+  it "rejects a target whose header exceeds the enclosing value" do
+    lambda { extract(%w{30 04 30 04 02 01 01}, 0, 0, 0) }.should raise_error(ParseException)
+  end
+
+  it "rejects a skipped element exceeding the enclosing value" do
+    lambda { extract(%w{30 07 30 03 04 05 01 02 03}, 0, 1) }.should raise_error(ParseException)
+  end
+
+  it "rejects nested values exceeding an enclosing definite length value" do
+    lambda { extract(%w{30 03 30 80 02 01 01 00 00}, 0, 0, 0) }.should raise_error(ParseException)
+  end
+end
@@ -0,0 +1,90 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.nio.ByteBuffer'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.FeedParser'
+
+describe "FeedParser" do
+  class RecordingHandler
+    include FeedParser::Handler
+
+    attr_reader :events
+
+    def initialize
+      @events = []
+    end
+
+    def header(depth, tag, tag_class, constructed, infinite, length)
+      @events << [:header, depth, tag, constructed, infinite, length]
+    end
+
+    def value(depth, bytes, off, len)
+      @events << [:value, depth, String.from_java_bytes(java.util.Arrays.copy_of_range(bytes, off, off + len))]
+    end
+
+    def end(depth, tag, tag_class)
+      @events << [:end, depth, tag]
+    end
+  end
+
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  let(:handler) { RecordingHandler.new }
+  subject { FeedParser.new(handler) }
+
+  let(:der) { raw(%w{30 80 04 02 aa bb 00 00 02 01 05}) }
+  let(:expected) {
+    [[:header, 0, 16, true, true, 0],
+     [:header, 1, 4, false, false, 2],
+     [:value, 1, "\xAA\xBB"],
+     [:end, 1, 4],
+     [:end, 0, 16],
+     [:header, 0, 2, false, false, 1],
+     [:value, 0, "\x05"],
+     [:end, 0, 2]]
+  }
+
+  it "reports all elements when fed at once" do
+    subject.feed(der, 0, der.length)
+    subject.finish
+    handler.events.should == expected
+  end
+
+  it "keeps partial headers and values between chunks" do
+    der.length.times { |i| subject.feed(der, i, 1) }
+    subject.finish
+    events = handler.events.inject([]) do |acc, e|
+      if e[0] == :value && acc.last && acc.last[0] == :value
+        acc.last[2] << e[2]
+      else
+        acc << e
+      end
+      acc
+    end
+    events.should == expected
+  end
+
+  it "accepts ByteBuffers" do
+    subject.feed(ByteBuffer.wrap(der))
+    subject.should be_complete
+    handler.events.should == expected
+  end
+
+  it "is incomplete while an element is open" do
+    subject.feed(der, 0, 4)
+    subject.should_not be_complete
+    lambda { subject.finish }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS at the top level" do
+    eoc = raw(%w{00 00})
+    lambda { subject.feed(eoc, 0, eoc.length) }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS inside definite length values" do
+    bad = raw(%w{30 02 00 00})
+    lambda { subject.feed(bad, 0, bad.length) }.should raise_error(ParseException)
+  end
+end
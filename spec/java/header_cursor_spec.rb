@@ -0,0 +1,105 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.TagClass'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+java_import 'impl.krypt.asn1.parser.HeaderCursor'
+
+describe "HeaderCursor" do
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  [
+    ["an ArrayInputStream", lambda { |bytes| ArrayInputStream.new(bytes) }],
+    ["a generic InputStream", lambda { |bytes| ByteArrayInputStream.new(bytes) }]
+  ].each do |name, source|
+    context "on #{name}" do
+      let(:source) { source }
+
+      def cursor(hex)
+        HeaderCursor.new(source.call(raw(hex)))
+      end
+
+      it "reports the current header" do
+        c = cursor(%w{a1 03 02 01 01})
+        c.next.should be_true
+        c.tag.should == 1
+        c.tag_class.should == TagClass::CONTEXT_SPECIFIC
+        c.constructed?.should be_true
+        c.infinite_length?.should be_false
+        c.length.should == 3
+        c.header_length.should == 2
+      end
+
+      it "leaves the source at the start of the value" do
+        c = cursor(%w{30 03 02 01 01})
+        c.next
+        c.next.should be_true
+        c.tag.should == 2
+        c.length.should == 1
+      end
+
+      it "skips values" do
+        c = cursor(%w{04 02 01 02 05 00})
+        c.next
+        c.skip_value
+        c.next.should be_true
+        c.tag.should == 5
+        c.consumed.should == 6
+      end
+
+      it "skips infinite length values and keeps reporting their header" do
+        c = cursor(%w{30 80 04 01 01 24 80 04 00 00 00 00 00 05 00})
+        c.next
+        c.skip_value
+        c.tag.should == 16
+        c.infinite_length?.should be_true
+        c.next.should be_true
+        c.tag.should == 5
+      end
+
+      it "parses multi-byte tags and long form lengths" do
+        c = cursor(%w{9f 81 00 82 01 00})
+        c.next
+        c.tag.should == 128
+        c.length.should == 256
+        c.header_length.should == 6
+      end
+
+      it "recognizes END OF CONTENTS" do
+        c = cursor(%w{00 00})
+        c.next
+        c.end_of_contents?.should be_true
+      end
+
+      it "returns false at the end of the source" do
+        c = cursor(%w{05 00})
+        c.next.should be_true
+        c.next.should be_false
+      end
+
+      it "rejects primitive values of infinite length" do
+        lambda { cursor(%w{04 80 00 00}).next }.should raise_error(ParseException)
+      end
+
+      it "rejects truncated headers" do
+        lambda { cursor(%w{04 82 01}).next }.should raise_error(ParseException)
+      end
+
+      it "can be reset to another source" do
+        c = cursor(%w{05 00})
+        c.next
+        c.reset(source.call(raw(%w{02 01 01})))
+        c.next.should be_true
+        c.tag.should == 2
+        c.consumed.should == 2
+      end
+    end
+  end
+
+  it "requires a source" do
+    lambda { HeaderCursor.new.next }.should raise_error(java.lang.IllegalStateException)
+  end
+end
@@ -0,0 +1,68 @@
+require 'krypt'
+require 'stringio'
+require 'tmpdir'
+
+describe "Krypt::ASN1 lazy values" do
+  def octets(size)
+    Krypt::ASN1::OctetString.new("a" * size).to_der
+  end
+
+  def spill_files
+    Dir.entries(Dir.tmpdir).select { |f| f =~ /\Akrypt.*\.spill\z/ }
+  end
+
+  after do
+    Krypt::ASN1.lazy_threshold = nil
+  end
+
+  it "is disabled by default" do
+    Krypt::ASN1.lazy_threshold.should be_nil
+  end
+
+  it "rejects thresholds that are not positive" do
+    lambda { Krypt::ASN1.lazy_threshold = 0 }.should raise_error(ArgumentError)
+  end
+
+  it "decodes values above the threshold from a stream" do
+    Krypt::ASN1.lazy_threshold = 16
+    asn1 = Krypt::ASN1.decode_der(StringIO.new(octets(1000)))
+    asn1.value.should == "a" * 1000
+  end
+
+  it "does not leave temporary files behind" do
+    Krypt::ASN1.lazy_threshold = 16
+    before = spill_files
+    values = (1..20).map { Krypt::ASN1.decode_der(StringIO.new(octets(1000))) }
+    spill_files.should == before
+    values.each { |v| v.value_io.read.size.should == 1000 }
+  end
+
+  it "streams the value of a lazy value without its header" do
+    Krypt::ASN1.lazy_threshold = 16
+    asn1 = Krypt::ASN1.decode_der(StringIO.new(octets(1000)))
+    asn1.value_io.read.should == "a" * 1000
+  end
+
+  it "encodes a lazy value unchanged" do
+    Krypt::ASN1.lazy_threshold = 16
+    der = octets(1000)
+    Krypt::ASN1.decode_der(StringIO.new(der)).to_der.should == der
+  end
+
+  it "streams the contents of a constructed value without its header" do
+    seq = Krypt::ASN1::Sequence.new([Krypt::ASN1::Integer.new(1), Krypt::ASN1::Null.new])
+    seq.value_io.read.should == "\x02\x01\x01\x05\x00"
+  end
+
+  it "streams the contents of a modified value" do
+    asn1 = Krypt::ASN1.decode_der("\x30\x03\x02\x01\x01")
+    asn1.value << Krypt::ASN1::Null.new
+    asn1.value_io.read.should == "\x02\x01\x01\x05\x00"
+  end
+
+  it "ends the contents of an infinite length value with end of contents" do
+    seq = Krypt::ASN1::Sequence.new([Krypt::ASN1::Integer.new(1)])
+    seq.infinite_length = true
+    seq.value_io.read.should == "\x02\x01\x01\x00\x00"
+  end
+end
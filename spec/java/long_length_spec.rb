@@ -0,0 +1,84 @@
+require 'java'
+require 'tempfile'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'java.io.RandomAccessFile'
+java_import 'impl.krypt.asn1.Length'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+java_import 'impl.krypt.asn1.parser.HeaderCursor'
+
+describe "Lengths beyond 2 GB" do
+  let(:factory) { ParserFactory.new }
+
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  [
+    ["an ArrayInputStream", lambda { |bytes| ArrayInputStream.new(bytes) }],
+    ["a generic InputStream", lambda { |bytes| ByteArrayInputStream.new(bytes) }]
+  ].each do |name, source|
+    context "parsed from #{name}" do
+      let(:source) { source }
+
+      def header(hex)
+        input = source.call(raw(hex))
+        factory.new_header_parser(input).next(input)
+      end
+
+      it "are reported as long values" do
+        h = header(%w{04 85 01 00 00 00 05})
+        h.length.length.should == 0x100000005
+        h.header_length.should == 7
+      end
+
+      it "are parsed up to the maximum supported length" do
+        header(%w{04 88 7f ff ff ff ff ff ff ff}).length.length.should == 0x7fffffffffffffff
+      end
+
+      it "are rejected beyond the maximum supported length" do
+        lambda { header(%w{04 88 ff ff ff ff ff ff ff ff}) }.should raise_error(ParseException)
+        lambda { header(%w{04 89 01 00 00 00 00 00 00 00 00}) }.should raise_error(ParseException)
+      end
+    end
+  end
+
+  it "are reported by HeaderCursor" do
+    cursor = HeaderCursor.new(ByteArrayInputStream.new(raw(%w{04 85 01 00 00 00 05})))
+    cursor.next
+    cursor.length.should == 0x100000005
+  end
+
+  it "are encoded in long form" do
+    encoding = Length.new(0x100000005, false, nil).encoding
+    String.from_java_bytes(encoding).should == "\x85\x01\x00\x00\x00\x05"
+  end
+
+  it "refuse to read the value into a single array" do
+    file = Tempfile.new('long')
+    begin
+      length = 0x80000005
+      raf = RandomAccessFile.new(file.path, "rw")
+      raf.write(raw(%w{04 84 80 00 00 05}))
+      raf.set_length(6 + length)
+      raf.seek(6 + length - 1)
+      raf.write(0x42)
+      raf.close
+
+      input = factory.new_mapped_input_stream(java.io.File.new(file.path))
+      object = factory.new_header_parser(input).next(input).object
+      object.value_source.length.should == length
+      value = object.value_stream
+      value.skip(length - 1).should == length - 1
+      value.read.should == 0x42
+      value.read.should == -1
+      lambda { object.value }.should raise_error(ParseException)
+      input.close
+    ensure
+      file.close
+      file.unlink
+    end
+  end
+end
@@ -0,0 +1,85 @@
+require 'java'
+require 'tempfile'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.RandomAccessFile'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.parser.MappedInputStream'
+
+describe "MappedInputStream" do
+  let(:factory) { ParserFactory.new }
+
+  def der_file(hex)
+    file = Tempfile.new('mapped')
+    file.binmode
+    file.write([hex.join('')].pack('H*'))
+    file.close
+    file
+  end
+
+  it "is created by ParserFactory for a file" do
+    file = der_file(%w{02 01 01})
+    begin
+      input = factory.new_mapped_input_stream(java.io.File.new(file.path))
+      input.should be_an_instance_of MappedInputStream
+      input.close
+    ensure
+      file.unlink
+    end
+  end
+
+  it "parses headers and values directly from the mapping" do
+    file = der_file(%w{04 03 01 02 03 02 01 05})
+    begin
+      input = factory.new_mapped_input_stream(java.io.File.new(file.path))
+      parser = factory.new_header_parser(input)
+      header = parser.next(input)
+      header.tag.tag.should == 4
+      String.from_java_bytes(header.value).should == "\x01\x02\x03"
+      header = parser.next(input)
+      header.tag.tag.should == 2
+      String.from_java_bytes(header.value).should == "\x05"
+      parser.next(input).should be_nil
+      input.close
+    ensure
+      file.unlink
+    end
+  end
+
+  it "skips values by moving the position" do
+    file = der_file(%w{04 03 01 02 03 02 01 05})
+    begin
+      input = factory.new_mapped_input_stream(java.io.File.new(file.path))
+      parser = factory.new_header_parser(input)
+      parser.next(input).skip_value
+      input.position.should == 5
+      String.from_java_bytes(parser.next(input).value).should == "\x05"
+      input.close
+    ensure
+      file.unlink
+    end
+  end
+
+  it "starts at the current position of a channel and leaves it open" do
+    file = der_file(%w{05 00 02 01 07})
+    begin
+      raf = RandomAccessFile.new(file.path, "r")
+      channel = raf.channel
+      channel.position(2)
+      input = factory.new_mapped_input_stream(channel)
+      header = factory.new_header_parser(input).next(input)
+      header.tag.tag.should == 2
+      String.from_java_bytes(header.value).should == "\x07"
+      input.close
+      channel.open?.should be_true
+      raf.close
+    ensure
+      file.unlink
+    end
+  end
+
+  it "raises when the file does not exist" do
+    lambda {
+      factory.new_mapped_input_stream(java.io.File.new("/nonexistent/krypt.der"))
+    }.should raise_error
+  end
+end
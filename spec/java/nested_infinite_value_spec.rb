@@ -0,0 +1,61 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.ParseException'
+
+describe "ParsedHeader#value_stream for nested infinite length values" do
+  subject {
+    ParserFactory.new.new_header_parser
+  }
+
+  def stream(hex)
+    ByteArrayInputStream.new([hex.join('')].pack('H*').to_java_bytes)
+  end
+
+  def read_all(value)
+    bytes = []
+    while (b = value.read) != -1
+      bytes << b
+    end
+    bytes.pack('C*')
+  end
+
+  def nested(depth)
+    (%w{24 80} * depth) + %w{04 01 07} + (%w{00 00} * depth)
+  end
+
+  it "returns the values of all nested chunks" do
+    io = stream(%w{24 80 04 01 01 24 80 04 01 02 24 80 04 01 03 00 00 00 00 04 01 04 00 00})
+    read_all(subject.next(io).get_value_stream(true)).should == "\x01\x02\x03\x04"
+  end
+
+  it "returns the raw encoding of all nested chunks" do
+    raw = %w{24 80 04 01 01 24 80 04 01 02 00 00 00 00}
+    io = stream(raw)
+    read_all(subject.next(io).get_value_stream(false)).should == [raw[2..-1].join('')].pack('H*')
+  end
+
+  it "handles deep nesting" do
+    io = stream(nested(1000) + %w{05 00})
+    read_all(subject.next(io).get_value_stream(true)).should == "\x07"
+    subject.next(io).tag.tag.should == 5
+  end
+
+  it "stops at the matching END OF CONTENTS" do
+    io = stream(%w{24 80 24 80 04 01 01 00 00 00 00 02 01 05})
+    read_all(subject.next(io).get_value_stream(true)).should == "\x01"
+    String.from_java_bytes(subject.next(io).value).should == "\x05"
+  end
+
+  it "skips empty nested values" do
+    io = stream(%w{24 80 24 80 00 00 04 00 04 01 01 00 00})
+    read_all(subject.next(io).get_value_stream(true)).should == "\x01"
+  end
+
+  it "raises if the stream ends before the END OF CONTENTS" do
+    io = stream(%w{24 80 24 80 04 01 01 00 00})
+    value = subject.next(io).get_value_stream(true)
+    lambda { read_all(value) }.should raise_error(ParseException)
+  end
+end
@@ -1,6 +1,9 @@
 require 'java'
 $CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
 java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.parser.ArrayHeaderParser'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
 java_import 'impl.krypt.asn1.parser.PullHeaderParser'
 
 describe "ParserFactory" do 
@@ -13,8 +16,25 @@ describe "ParserFactory" do
       ParserFactory.new
     }
 
-    it "creates PullHeaderParser" do 
-      subject.newHeaderParser.should be_an_instance_of  PullHeaderParser
+    it "creates ArrayHeaderParser" do 
+      subject.newHeaderParser.should be_an_instance_of  ArrayHeaderParser
+    end
+
+    it "creates parsers that read other streams as well" do
+      raw = "\x02\x01\x01".to_java_bytes
+      header = subject.newHeaderParser.next(ByteArrayInputStream.new(raw))
+      header.tag.tag.should == 2
+      String.from_java_bytes(header.value).should == "\x01"
+    end
+
+    it "creates ArrayHeaderParser for in-memory sources" do
+      raw = "\x02\x01\x01".to_java_bytes
+      subject.newHeaderParser(ArrayInputStream.new(raw)).should be_an_instance_of ArrayHeaderParser
+    end
+
+    it "creates PullHeaderParser for other streams" do
+      raw = "\x02\x01\x01".to_java_bytes
+      subject.newHeaderParser(ByteArrayInputStream.new(raw)).should be_an_instance_of PullHeaderParser
     end
   end
 end
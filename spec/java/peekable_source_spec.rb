@@ -0,0 +1,84 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.TagClass'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+java_import 'impl.krypt.asn1.parser.PeekableSource'
+
+describe "PeekableSource" do
+  def source(hex)
+    PeekableSource.new([hex.join('')].pack('H*').to_java_bytes)
+  end
+
+  it "reports the next header without consuming it" do
+    s = source(%w{a1 03 02 01 01})
+    s.peek_tag.should == 1
+    s.peek_tag_class.should == TagClass::CONTEXT_SPECIFIC
+    s.peek_is_constructed.should be_true
+    s.peek_is_infinite_length.should be_false
+    s.position.should == 0
+    s.next.tag.tag.should == 1
+  end
+
+  it "returns the same peeked header for the same position" do
+    s = source(%w{05 00})
+    s.peek_header.should equal(s.peek_header)
+  end
+
+  it "positions the source at the value after consuming a header" do
+    s = source(%w{30 03 02 01 01})
+    s.skip_header
+    s.position.should == 2
+    s.peek_tag.should == 2
+  end
+
+  it "consumes header and value" do
+    s = source(%w{04 02 01 02 05 00})
+    s.skip
+    s.peek_tag.should == 5
+  end
+
+  it "skips values of infinite length" do
+    s = source(%w{30 80 02 01 01 00 00 05 00})
+    s.skip
+    s.peek_tag.should == 5
+  end
+
+  it "parses the value of a consumed header from the source" do
+    s = source(%w{04 02 01 02 05 00})
+    String.from_java_bytes(s.next.value).should == "\x01\x02"
+    s.peek_tag.should == 5
+  end
+
+  it "rewinds to a saved position" do
+    s = source(%w{02 01 01 05 00})
+    start = s.position
+    s.skip
+    s.peek_tag.should == 5
+    s.rewind(start)
+    s.peek_tag.should == 2
+  end
+
+  it "rejects positions outside the source" do
+    lambda { source(%w{05 00}).rewind(3) }.should raise_error(java.lang.IllegalArgumentException)
+  end
+
+  it "is exhausted at the end of the source" do
+    s = source(%w{05 00})
+    s.skip
+    s.has_next.should be_false
+    s.peek_header.should be_nil
+    s.next.should be_nil
+    lambda { s.peek_tag }.should raise_error(ParseException)
+  end
+
+  it "starts at the position of a stream" do
+    bytes = [%w{05 00 02 01 01}.join('')].pack('H*').to_java_bytes
+    s = PeekableSource.new(ArrayInputStream.new(bytes, 2, 3))
+    s.peek_tag.should == 2
+  end
+
+  it "uses shared tags for single octet encodings" do
+    source(%w{05 00}).peek_header.tag.should be_shared
+  end
+end
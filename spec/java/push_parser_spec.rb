@@ -0,0 +1,90 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.Asn1Visitor'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+java_import 'impl.krypt.asn1.parser.PushParser'
+
+describe "PushParser" do
+  class RecordingVisitor
+    include Asn1Visitor
+
+    attr_reader :events
+
+    def initialize
+      @events = []
+    end
+
+    def startConstructed(depth, tag, tag_class, infinite)
+      @events << [:start, depth, tag, infinite]
+    end
+
+    def primitive(depth, tag, tag_class, value)
+      bytes = Java::byte[value.remaining].new
+      value.get(bytes)
+      @events << [:primitive, depth, tag, String.from_java_bytes(bytes)]
+    end
+
+    def endConstructed(depth, tag, tag_class)
+      @events << [:end, depth, tag]
+    end
+  end
+
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  def parse(io)
+    visitor = RecordingVisitor.new
+    PushParser.new.parse(io, visitor)
+    visitor.events
+  end
+
+  let(:nested) { %w{30 80 04 01 aa 30 03 02 01 07 00 00 02 01 05} }
+  let(:expected) {
+    [[:start, 0, 16, true],
+     [:primitive, 1, 4, "\xAA"],
+     [:start, 1, 16, false],
+     [:primitive, 2, 2, "\x07"],
+     [:end, 1, 16],
+     [:end, 0, 16],
+     [:primitive, 0, 2, "\x05"]]
+  }
+
+  it "reports definite and infinite length values from a stream" do
+    parse(ByteArrayInputStream.new(raw(nested))).should == expected
+  end
+
+  it "reports the same events for in-memory sources" do
+    parse(ArrayInputStream.new(raw(nested))).should == expected
+  end
+
+  it "reports empty constructed values" do
+    parse(ArrayInputStream.new(raw(%w{30 00}))).should == [[:start, 0, 16, false], [:end, 0, 16]]
+  end
+
+  it "can be reused for several sources" do
+    parser = PushParser.new
+    visitor = RecordingVisitor.new
+    parser.parse(ArrayInputStream.new(raw(%w{02 01 01})), visitor)
+    parser.parse(ArrayInputStream.new(raw(%w{02 01 02})), visitor)
+    visitor.events.should == [[:primitive, 0, 2, "\x01"], [:primitive, 0, 2, "\x02"]]
+  end
+
+  it "rejects END OF CONTENTS at the top level" do
+    lambda { parse(ArrayInputStream.new(raw(%w{00 00}))) }.should raise_error(ParseException)
+  end
+
+  it "rejects END OF CONTENTS inside definite length values" do
+    lambda { parse(ArrayInputStream.new(raw(%w{30 02 00 00}))) }.should raise_error(ParseException)
+  end
+
+  it "rejects values exceeding the enclosing value" do
+    lambda { parse(ArrayInputStream.new(raw(%w{30 02 04 02 01 02}))) }.should raise_error(ParseException)
+  end
+
+  it "rejects unterminated infinite length values" do
+    lambda { parse(ArrayInputStream.new(raw(%w{30 80 02 01 01}))) }.should raise_error(ParseException)
+  end
+end
@@ -0,0 +1,79 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.Asn1Object'
+java_import 'impl.krypt.asn1.Length'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.Tag'
+java_import 'impl.krypt.asn1.TagClass'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+
+describe "Shared tags and lengths" do
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  it "parses single octet headers into shared instances" do
+    parser = ParserFactory.new.new_header_parser
+    io = ByteArrayInputStream.new(raw(%w{02 01 01 02 01 02}))
+    first = parser.next(io)
+    first.skip_value
+    second = parser.next(io)
+    first.tag.should be_shared
+    first.tag.should equal(second.tag)
+    first.length.should equal(second.length)
+  end
+
+  it "shares instances between both parsers" do
+    factory = ParserFactory.new
+    pulled = factory.new_header_parser.next(ByteArrayInputStream.new(raw(%w{05 00})))
+    sliced = factory.new_header_parser.next(ArrayInputStream.new(raw(%w{05 00})))
+    pulled.tag.should equal(sliced.tag)
+  end
+
+  it "does not share multi-octet encodings" do
+    header = ParserFactory.new.new_header_parser.next(ByteArrayInputStream.new(raw(%w{1f 81 00 81 80} + %w{00} * 128)))
+    header.tag.should_not be_shared
+    header.length.should_not be_shared
+  end
+
+  it "decodes single octet tags" do
+    tag = Tag.for_single_octet(0xa3 - 256)
+    tag.tag.should == 3
+    tag.tag_class.should == TagClass::CONTEXT_SPECIFIC
+    tag.should be_constructed
+  end
+
+  it "decodes single octet lengths" do
+    Length.for_single_octet(0x7f).length.should == 127
+    Length.for_single_octet(0x80 - 256).should be_infinite_length
+  end
+
+  it "rejects octets that start longer encodings" do
+    lambda { Tag.for_single_octet(0x1f) }.should raise_error(java.lang.IllegalArgumentException)
+    lambda { Length.for_single_octet(0x81 - 256) }.should raise_error(java.lang.IllegalArgumentException)
+  end
+
+  it "refuses modification of shared instances" do
+    lambda { Tag.for_single_octet(0x02).tag = 3 }.should raise_error(java.lang.UnsupportedOperationException)
+    lambda { Length.for_single_octet(0x01).length = 2 }.should raise_error(java.lang.UnsupportedOperationException)
+  end
+
+  it "returns modifiable copies" do
+    copy = Tag.for_single_octet(0x02).copy
+    copy.should_not be_shared
+    copy.tag = 3
+    copy.tag.should == 3
+    Tag.for_single_octet(0x02).tag.should == 2
+  end
+
+  it "replaces shared instances of an object by private copies on modification" do
+    header = ParserFactory.new.new_header_parser.next(ByteArrayInputStream.new(raw(%w{02 01 01})))
+    object = header.object
+    shared = object.header.tag
+    object.mutable_tag.tag = 5
+    object.header.tag.tag.should == 5
+    shared.tag.should == 2
+    Tag.for_single_octet(0x02).tag.should == 2
+  end
+end
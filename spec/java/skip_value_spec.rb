@@ -0,0 +1,84 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+
+describe "ParsedHeader#skip_value" do
+  subject {
+    ParserFactory.new.new_header_parser
+  }
+
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  def stream(hex)
+    ByteArrayInputStream.new(raw(hex))
+  end
+
+  it "skips a definite length value" do
+    io = stream(%w{04 03 01 02 03 02 01 05})
+    subject.next(io).skip_value
+    next_header = subject.next(io)
+    next_header.tag.tag.should == 2
+    String.from_java_bytes(next_header.value).should == "\x05"
+  end
+
+  it "skips an infinite length value including nested values" do
+    io = stream(%w{24 80 04 02 01 02 24 80 04 01 03 00 00 00 00 02 01 05})
+    subject.next(io).skip_value
+    String.from_java_bytes(subject.next(io).value).should == "\x05"
+  end
+
+  it "skips the rest of an infinite length value stream" do
+    io = stream(%w{24 80 04 02 01 02 04 01 03 00 00 02 01 05})
+    header = subject.next(io)
+    header.get_value_stream(true).read.should == 1
+    header.skip_value
+    next_header = subject.next(io)
+    next_header.tag.tag.should == 2
+    String.from_java_bytes(next_header.value).should == "\x05"
+  end
+
+  it "skips the rest of a raw infinite length value stream" do
+    io = stream(%w{24 80 04 02 01 02 04 01 03 00 00 02 01 05})
+    header = subject.next(io)
+    value = header.get_value_stream(false)
+    3.times { value.read }
+    header.skip_value
+    String.from_java_bytes(subject.next(io).value).should == "\x05"
+  end
+
+  it "skips a value stream by its skip method" do
+    io = stream(%w{24 80 04 02 01 02 04 01 03 00 00 02 01 05})
+    value = subject.next(io).get_value_stream(true)
+    value.skip(2).should == 2
+    value.read.should == 3
+    value.read.should == -1
+    String.from_java_bytes(subject.next(io).value).should == "\x05"
+  end
+
+  it "moves the position of in-memory sources" do
+    io = ArrayInputStream.new(raw(%w{04 03 01 02 03 02 01 05}))
+    parser = ParserFactory.new.new_header_parser(io)
+    parser.next(io).skip_value
+    io.position.should == 5
+  end
+
+  it "does not retain the skipped value" do
+    io = stream(%w{04 03 01 02 03})
+    header = subject.next(io)
+    header.skip_value
+    lambda { header.value }.should raise_error(ParseException)
+  end
+
+  it "keeps a value that was read before skipping" do
+    io = stream(%w{04 03 01 02 03})
+    header = subject.next(io)
+    header.value
+    header.skip_value
+    String.from_java_bytes(header.value).should == "\x01\x02\x03"
+  end
+end
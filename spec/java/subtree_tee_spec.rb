@@ -0,0 +1,125 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'java.io.ByteArrayOutputStream'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.parser.SubtreeTeeInputStream'
+
+describe "SubtreeTeeInputStream" do
+  def raw(hex)
+    [hex.join('')].pack('H*')
+  end
+
+  def tee(hex, *path)
+    sink = ByteArrayOutputStream.new
+    input = SubtreeTeeInputStream.new(ByteArrayInputStream.new(raw(hex).to_java_bytes), sink, path.to_java(:int))
+    [input, sink]
+  end
+
+  def parse_all(input)
+    parser = ParserFactory.new.new_header_parser
+    while header = parser.next(input)
+      header.object
+    end
+  end
+
+  def copied(sink)
+    String.from_java_bytes(sink.to_byte_array)
+  end
+
+  # SEQUENCE { INTEGER 1, SEQUENCE { OCTET STRING aa bb, NULL } }
+  let(:der) { %w{30 0b 02 01 01 30 06 04 02 aa bb 05 00} }
+
+  it "copies the encoding of a nested element while it is parsed" do
+    input, sink = tee(der, 0, 1)
+    parse_all(input)
+    input.should be_complete
+    copied(sink).should == raw(%w{30 06 04 02 aa bb 05 00})
+  end
+
+  it "copies a complete top-level element" do
+    input, sink = tee(der, 0)
+    parse_all(input)
+    copied(sink).should == raw(der)
+  end
+
+  it "selects among several top-level elements" do
+    input, sink = tee(%w{05 00 30 03 02 01 01}, 1, 0)
+    parse_all(input)
+    copied(sink).should == raw(%w{02 01 01})
+  end
+
+  it "copies infinite length elements including their END OF CONTENTS" do
+    input, sink = tee(%w{30 80 02 01 01 30 80 04 01 aa 00 00 00 00}, 0, 1)
+    parse_all(input)
+    copied(sink).should == raw(%w{30 80 04 01 aa 00 00})
+  end
+
+  it "copies bytes passed in single byte reads" do
+    input, sink = tee(%w{30 06 02 01 01 02 01 02}, 0, 1)
+    8.times { input.read }
+    input.should be_complete
+    copied(sink).should == raw(%w{02 01 02})
+  end
+
+  it "copies skipped bytes" do
+    input, sink = tee(%w{30 06 02 01 01 02 01 02}, 0, 1)
+    input.skip(8).should == 8
+    copied(sink).should == raw(%w{02 01 02})
+  end
+
+  it "is not complete if the path does not exist" do
+    input, sink = tee(der, 0, 2)
+    parse_all(input)
+    input.should_not be_complete
+    copied(sink).should == ""
+  end
+
+  it "rejects empty paths and negative indexes" do
+    lambda { tee(der) }.should raise_error(java.lang.IllegalArgumentException)
+    lambda { tee(der, 0, -1) }.should raise_error(java.lang.IllegalArgumentException)
+  end
+end
+
+describe "Krypt::ASN1.decode_der_digest" do
+  before(:all) { require 'krypt' }
+
+  class CollectingDigest
+    attr_reader :data
+
+    def initialize
+      @data = ""
+    end
+
+    def update(data)
+      @data << data
+    end
+  end
+
+  let(:der) { [%w{30 0b 02 01 01 30 06 04 02 aa bb 05 00}.join('')].pack('H*') }
+
+  it "decodes the value and feeds the selected element to the digest" do
+    digest = CollectingDigest.new
+    asn1 = Krypt::ASN1.decode_der_digest(der, digest, [0, 1])
+    asn1.to_der.should == der
+    digest.data.should == der[5, 8]
+  end
+
+  it "raises a ParseError if the path does not exist" do
+    lambda {
+      Krypt::ASN1.decode_der_digest(der, CollectingDigest.new, [0, 2])
+    }.should raise_error(Krypt::ASN1::ParseError)
+  end
+
+  it "raises an ArgumentError for an empty path" do
+    lambda {
+      Krypt::ASN1.decode_der_digest(der, CollectingDigest.new, [])
+    }.should raise_error(ArgumentError)
+  end
+
+  it "raises an ArgumentError for digests without update" do
+    lambda {
+      Krypt::ASN1.decode_der_digest(der, Object.new, [0])
+    }.should raise_error(ArgumentError)
+  end
+end
@@ -0,0 +1,92 @@
+require 'krypt'
+
+describe "Krypt::ASN1.validate_der" do
+  def der(hex)
+    [hex.join('')].pack('H*')
+  end
+
+  def invalid(hex)
+    lambda { Krypt::ASN1.validate_der(der(hex)) }.should raise_error(Krypt::ASN1::ParseError)
+  end
+
+  it "accepts a DER encoding" do
+    Krypt::ASN1.validate_der(der(%w{30 06 02 01 01 01 01 ff})).should be_true
+  end
+
+  it "accepts SETs encoded by krypt" do
+    set = Krypt::ASN1::Set.new([
+      Krypt::ASN1::OctetString.new(""),
+      Krypt::ASN1::ASN1Data.new([Krypt::ASN1::Null.new], 0, :CONTEXT_SPECIFIC)
+    ])
+    Krypt::ASN1.validate_der(set.to_der).should be_true
+  end
+
+  it "accepts SET components sorted by tag class first" do
+    Krypt::ASN1.validate_der(der(%w{31 06 02 01 01 80 01 00})).should be_true
+    Krypt::ASN1.validate_der(der(%w{31 06 04 00 a0 02 05 00})).should be_true
+  end
+
+  it "rejects SET components with the same tag out of order" do
+    invalid(%w{31 06 02 01 02 02 01 01})
+  end
+
+  it "rejects SET components with a later tag class first" do
+    invalid(%w{31 06 80 01 00 02 01 01})
+    invalid(%w{31 06 a0 02 05 00 04 00})
+  end
+
+  it "rejects SET components of the same class with a higher tag number first" do
+    invalid(%w{31 06 04 01 00 02 01 01})
+  end
+
+  it "rejects constructed encodings of string types" do
+    invalid(%w{24 03 04 01 01})
+    invalid(%w{23 04 03 02 00 01})
+    invalid(%w{2c 03 0c 01 61})
+  end
+
+  it "accepts constructed values with a context-specific tag" do
+    Krypt::ASN1.validate_der(der(%w{a4 03 04 01 01})).should be_true
+  end
+
+  it "rejects infinite length encodings" do
+    invalid(%w{30 80 02 01 01 00 00})
+  end
+
+  it "rejects END OF CONTENTS inside a definite length value" do
+    invalid(%w{30 02 00 00})
+  end
+
+  it "rejects END OF CONTENTS on its own" do
+    invalid(%w{00 00})
+  end
+
+  it "rejects data after the value" do
+    invalid(%w{05 00 05 00})
+  end
+
+  it "rejects empty input" do
+    lambda { Krypt::ASN1.validate_der("") }.should raise_error(Krypt::ASN1::ParseError)
+  end
+
+  it "rejects non-minimal INTEGER encodings" do
+    invalid(%w{02 02 00 7f})
+  end
+
+  it "rejects BOOLEAN values other than 0x00 and 0xff" do
+    invalid(%w{01 01 01})
+  end
+
+  it "rejects non-minimal length encodings" do
+    invalid(%w{04 81 01 00})
+  end
+
+  it "reports the offset of the offending element" do
+    begin
+      Krypt::ASN1.validate_der(der(%w{30 05 05 00 01 01 01}))
+      fail
+    rescue Krypt::ASN1::ParseError => e
+      e.message.should =~ /offset 4/
+    end
+  end
+end
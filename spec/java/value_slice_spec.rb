@@ -0,0 +1,72 @@
+require 'java'
+$CLASSPATH << File.expand_path('../../lib/kryptcore.jar', File.dirname(__FILE__))
+java_import 'java.io.ByteArrayInputStream'
+java_import 'impl.krypt.asn1.ParserFactory'
+java_import 'impl.krypt.asn1.ParseException'
+java_import 'impl.krypt.asn1.parser.ArrayInputStream'
+
+describe "ParsedHeader#value_slice" do
+  let(:parser) { ParserFactory.new.new_header_parser }
+
+  def raw(hex)
+    [hex.join('')].pack('H*').to_java_bytes
+  end
+
+  def slice_bytes(slice)
+    bytes = Java::byte[slice.remaining].new
+    slice.get(bytes)
+    String.from_java_bytes(bytes)
+  end
+
+  it "is a view on the source array" do
+    bytes = raw(%w{04 03 01 02 03})
+    slice = parser.next(ArrayInputStream.new(bytes)).value_slice
+    slice.remaining.should == 3
+    bytes[2] = 9
+    slice.get(0).should == 9
+  end
+
+  it "is read-only" do
+    slice = parser.next(ArrayInputStream.new(raw(%w{04 01 01}))).value_slice
+    slice.should be_read_only
+  end
+
+  it "advances the source past the value" do
+    io = ArrayInputStream.new(raw(%w{04 02 01 02 02 01 05}))
+    parser.next(io).value_slice
+    String.from_java_bytes(parser.next(io).value).should == "\x05"
+  end
+
+  it "includes the END OF CONTENTS of infinite length values" do
+    io = ArrayInputStream.new(raw(%w{24 80 04 01 01 00 00 05 00}))
+    slice_bytes(parser.next(io).value_slice).should == "\x04\x01\x01\x00\x00"
+    parser.next(io).tag.tag.should == 5
+  end
+
+  it "returns the same contents when requested twice" do
+    header = parser.next(ArrayInputStream.new(raw(%w{04 02 01 02})))
+    slice_bytes(header.value_slice).should == "\x01\x02"
+    slice_bytes(header.value_slice).should == "\x01\x02"
+  end
+
+  it "is consistent with value" do
+    header = parser.next(ArrayInputStream.new(raw(%w{04 02 01 02})))
+    slice_bytes(header.value_slice).should == "\x01\x02"
+    String.from_java_bytes(header.value).should == "\x01\x02"
+  end
+
+  it "copies the value of generic streams" do
+    header = parser.next(ByteArrayInputStream.new(raw(%w{04 02 01 02})))
+    slice_bytes(header.value_slice).should == "\x01\x02"
+  end
+
+  it "is empty for empty values" do
+    header = parser.next(ArrayInputStream.new(raw(%w{05 00})))
+    header.value_slice.remaining.should == 0
+  end
+
+  it "raises for values exceeding the source" do
+    header = parser.next(ArrayInputStream.new(raw(%w{04 05 01 02})))
+    lambda { header.value_slice }.should raise_error(ParseException)
+  end
+end
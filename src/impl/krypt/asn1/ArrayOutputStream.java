@@ -0,0 +1,84 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * An OutputStream writing into an array of fixed size, for encodings whose
+ * length has been computed beforehand. In contrast to ByteArrayOutputStream,
+ * the array is never grown or copied and may be handed out as it is once
+ * it has been filled. Not thread-safe.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class ArrayOutputStream extends OutputStream {
+    
+    private final byte[] buf;
+    private int count;
+    
+    public ArrayOutputStream(int size) {
+        if (size < 0) throw new IllegalArgumentException("Size must not be negative");
+        this.buf = new byte[size];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length)
+            throw new IOException("Encoding exceeds its precomputed length");
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) throw new NullPointerException();
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len > buf.length - count)
+            throw new IOException("Encoding exceeds its precomputed length");
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * @return the underlying array, no copy is made
+     * @throws IllegalStateException if the array has not been filled 
+     * completely
+     */
+    public byte[] getBuffer() {
+        if (count != buf.length)
+            throw new IllegalStateException("Encoding is shorter than its precomputed length");
+        return buf;
+    }
+}
@@ -27,7 +27,9 @@
  */
 package impl.krypt.asn1;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
@@ -38,31 +40,154 @@ public class Asn1Object {
     
     private Header header;
     private byte[] value;
+    private ValueSource source;
 
     public Asn1Object(Header header, byte[] value) {
         this.header = header;
         this.value = value;
     }
+    
+    /**
+     * Creates an object whose value stays where it is stored until it is
+     * requested as a whole using getValue().
+     */
+    public Asn1Object(Header header, ValueSource source) {
+        if (source == null) throw new NullPointerException();
+        
+        this.header = header;
+        this.source = source;
+    }
 
     public Header getHeader() {
         return header;
     }
 
+    /**
+     * Returns the tag for modification. A shared tag is replaced by a 
+     * private copy first.
+     */
+    public Tag getMutableTag() {
+        Tag tag = header.getTag();
+        if (tag.isShared()) {
+            tag = tag.copy();
+            header = new EncodableHeader(tag, header.getLength());
+        }
+        return tag;
+    }
+    
+    /**
+     * Returns the length for modification. A shared length is replaced by
+     * a private copy first.
+     */
+    public Length getMutableLength() {
+        Length length = header.getLength();
+        if (length.isShared()) {
+            length = length.copy();
+            header = new EncodableHeader(header.getTag(), length);
+        }
+        return length;
+    }
+
     public byte[] getValue() {
+        if (value == null && source != null) {
+            value = readFully(source);
+            source = null;
+        }
         return value;
     }
     
+    /**
+     * @return the source of a value that has not been read into memory 
+     * yet, null otherwise
+     */
+    public ValueSource getValueSource() {
+        return source;
+    }
+    
+    /**
+     * @return a stream on the value, or null if there is none
+     */
+    public InputStream getValueStream() {
+        if (source != null)
+            return source.openStream();
+        if (value != null)
+            return new ByteArrayInputStream(value);
+        return null;
+    }
+    
+    /**
+     * @return the length of the encoding of header and value, as written 
+     * by encodeTo
+     */
+    public long getEncodedLength() {
+        long valueLength = 0;
+        if (value != null)
+            valueLength = value.length;
+        else if (source != null)
+            valueLength = source.getLength();
+        return header.getHeaderLength() + valueLength;
+    }
+    
+    public boolean hasValue() {
+        return value != null || source != null;
+    }
+    
     public void setValue(byte[] value) {
         this.value = value;
+        this.source = null;
     }
     
     public void invalidateValue() {
         this.value = null;
+        this.source = null;
     }
     
     public void encodeTo(OutputStream out) throws IOException {
         header.encodeTo(out);
-        if (value != null)
+        if (value != null) {
             out.write(value);
+        }
+        else if (source != null) {
+            InputStream in = source.openStream();
+            try {
+                byte[] buf = new byte[8192];
+                int read;
+                while ((read = in.read(buf)) != -1)
+                    out.write(buf, 0, read);
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+    
+    private static byte[] readFully(ValueSource source) {
+        long length = source.getLength();
+        if (length > Integer.MAX_VALUE)
+            throw new ParseException("Value too large to be held in memory");
+        
+        byte[] ret = new byte[(int) length];
+        InputStream in = source.openStream();
+        try {
+            int off = 0;
+            while (off < ret.length) {
+                int read = in.read(ret, off, ret.length - off);
+                if (read == -1)
+                    throw new ParseException("Premature end of value detected.");
+                off += read;
+            }
+            return ret;
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException ex) {
+                //ignore
+            }
+        }
     }
 }
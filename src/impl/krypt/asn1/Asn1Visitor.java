@@ -0,0 +1,53 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Callbacks for push-style (event-driven) traversal of DER/BER encodings.
+ * The depth of top-level elements is 0. END OF CONTENTS markers closing
+ * infinite length values are reported as endConstructed and not as 
+ * primitive values, any other END OF CONTENTS is rejected.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public interface Asn1Visitor {
+    
+    public void startConstructed(int depth, int tag, TagClass tagClass, boolean isInfiniteLength);
+    
+    /**
+     * The value consists of the bytes between the position and the limit
+     * of the buffer. The buffer is only valid for the duration of the 
+     * callback, it must be copied if it is to be kept.
+     */
+    public void primitive(int depth, int tag, TagClass tagClass, ByteBuffer value);
+    
+    public void endConstructed(int depth, int tag, TagClass tagClass);
+}
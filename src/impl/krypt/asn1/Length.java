@@ -33,18 +33,57 @@ package impl.krypt.asn1;
  */
 public class Length {
 
+    private static final Length[] SINGLE_OCTET_LENGTHS = new Length[129];
+    
+    static {
+        for (int i=0; i < SINGLE_OCTET_LENGTHS.length; i++) {
+            byte b = (byte) i;
+            boolean isInfinite = b == Header.INFINITE_LENGTH_MASK;
+            SINGLE_OCTET_LENGTHS[i] = new Length(isInfinite ? 0 : i, isInfinite, new byte[] { b }, true);
+        }
+    }
+    
     private boolean isInfiniteLength;
-    private int length;
+    private long length;
     private byte[] encoding;
+    private final boolean shared;
 
     public Length(boolean isInfiniteLength) {
         this(0, isInfiniteLength, null);
     }
 
-    public Length(int length, boolean isInfiniteLength, byte[] encoding) {
+    public Length(long length, boolean isInfiniteLength, byte[] encoding) {
+        this(length, isInfiniteLength, encoding, false);
+    }
+    
+    private Length(long length, boolean isInfiniteLength, byte[] encoding, boolean shared) {
         this.isInfiniteLength = isInfiniteLength;
         this.length = length;
         this.encoding = encoding;
+        this.shared = shared;
+    }
+    
+    /**
+     * Returns a shared instance for short definite lengths and for the 
+     * infinite length octet. Shared instances are immutable, use copy() to
+     * obtain an instance that may be modified.
+     * 
+     * @throws IllegalArgumentException if b starts a long definite length
+     * encoding
+     */
+    public static Length forSingleOctet(byte b) {
+        int i = b & 0xff;
+        if (i > 0x80)
+            throw new IllegalArgumentException("Long definite length encodings need more than one octet");
+        return SINGLE_OCTET_LENGTHS[i];
+    }
+    
+    public boolean isShared() {
+        return shared;
+    }
+    
+    public Length copy() {
+        return new Length(length, isInfiniteLength, encoding);
     }
 
     public byte[] getEncoding() {
@@ -61,22 +100,26 @@ public class Length {
     public void setInfiniteLength(boolean isInfiniteLength) {
         if (isInfiniteLength == this.isInfiniteLength)
             return;
+        checkMutable();
         this.isInfiniteLength = isInfiniteLength;
         this.encoding = null;
     }
 
-    public int getLength() {
+    public long getLength() {
         return length;
     }
     
-    public void setLength(int length) {
+    public void setLength(long length) {
+        if (length < 0) throw new IllegalArgumentException("Length must not be negative");
         if (length == this.length)
             return;
+        checkMutable();
         this.length = length;
         this.encoding = null;
     }
     
     public void invalidateEncoding() {
+        checkMutable();
         this.encoding = null;
         this.length = 0;
     }
@@ -85,6 +128,11 @@ public class Length {
         return encoding != null;
     }
     
+    private void checkMutable() {
+        if (shared)
+            throw new UnsupportedOperationException("Shared lengths must not be modified");
+    }
+    
     private byte[] computeEncoding() {
         if (isInfiniteLength) {
             return new byte[]{Header.INFINITE_LENGTH_MASK};
@@ -97,7 +145,7 @@ public class Length {
 
     private byte[] computeComplexLength() {
         int numShifts = Tag.determineNumberOfShifts(length, 8);
-        int tmp = length;
+        long tmp = length;
         byte[] out = new byte[numShifts + 1];
         out[0] = (byte) (numShifts & 0xff);
         out[0] |= Header.INFINITE_LENGTH_MASK;
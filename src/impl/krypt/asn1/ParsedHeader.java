@@ -28,6 +28,7 @@
 package impl.krypt.asn1;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -36,8 +37,27 @@ import java.io.InputStream;
  */
 public interface ParsedHeader extends Header {
     
+    /**
+     * Moves the source past the value without reading it into memory. The
+     * value is not retained, so afterwards it can no longer be retrieved 
+     * unless it had already been read before. Skipping after a value 
+     * stream has been obtained skips the remainder of that stream.
+     */
     public void skipValue();
     public byte[] getValue();
+    /**
+     * Returns the value as a read-only buffer. For in-memory sources, this
+     * is a view on the source bytes, no copy is made. Consumes the value 
+     * just like getValue() does.
+     */
+    public ByteBuffer getValueSlice();
     public InputStream getValueStream(boolean valuesOnly);
     public Asn1Object getObject();
+    /**
+     * Like getObject(), but definite length values of at least lazyThreshold
+     * bytes are not read into memory. They are handed out as a ValueSource
+     * backed by the source itself if it is seekable, or by a temporary file
+     * otherwise.
+     */
+    public Asn1Object getObject(int lazyThreshold);
 }
@@ -27,7 +27,14 @@
  */
 package impl.krypt.asn1;
 
+import impl.krypt.asn1.parser.ArrayHeaderParser;
+import impl.krypt.asn1.parser.ArrayInputStream;
+import impl.krypt.asn1.parser.MappedInputStream;
 import impl.krypt.asn1.parser.PullHeaderParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 
 /**
@@ -36,7 +43,42 @@ import impl.krypt.asn1.parser.PullHeaderParser;
  */
 public class ParserFactory {
    
+    /**
+     * Returns a parser for any source. ArrayInputStreams are parsed directly
+     * from their backing array, other streams are read octet by octet.
+     */
     public Parser newHeaderParser() {
+        return new ArrayHeaderParser();
+    }
+    
+    /**
+     * Returns the parser best suited for the given source. In-memory 
+     * sources are parsed directly from their backing array. Values of 
+     * SeekableInput sources such as a MappedInputStream are sliced from 
+     * the source without copying, regardless of the parser being used.
+     */
+    public Parser newHeaderParser(InputStream in) {
+        if (in instanceof ArrayInputStream)
+            return new ArrayHeaderParser();
         return new PullHeaderParser();
     }
+    
+    /**
+     * Maps the file behind channel, starting at its current position, for
+     * parsing with the parser returned by newHeaderParser(InputStream). 
+     * The channel remains owned by the caller and is not closed together 
+     * with the returned stream.
+     */
+    public MappedInputStream newMappedInputStream(FileChannel channel) throws IOException {
+        return new MappedInputStream(channel);
+    }
+    
+    /**
+     * Maps file for parsing with the parser returned by 
+     * newHeaderParser(InputStream). Closing the returned stream closes the
+     * file.
+     */
+    public MappedInputStream newMappedInputStream(File file) throws IOException {
+        return new MappedInputStream(file);
+    }
 }
@@ -33,20 +33,63 @@ package impl.krypt.asn1;
  */
 public class Tag {
 
+    private static final Tag[] SINGLE_OCTET_TAGS = new Tag[256];
+    
+    static {
+        for (int i=0; i < SINGLE_OCTET_TAGS.length; i++) {
+            byte b = (byte) i;
+            if ((b & Header.COMPLEX_TAG_MASK) == Header.COMPLEX_TAG_MASK)
+                continue;
+            SINGLE_OCTET_TAGS[i] = new Tag(b & Header.COMPLEX_TAG_MASK,
+                                           TagClass.of((byte)(b & TagClass.PRIVATE.getMask())),
+                                           (b & Header.CONSTRUCTED_MASK) == Header.CONSTRUCTED_MASK,
+                                           new byte[] { b },
+                                           true);
+        }
+    }
+    
     private int tag;
     private TagClass tc;
     private boolean isConstructed;
     private byte[] encoding;
+    private final boolean shared;
 
     public Tag(int tag, TagClass tc, boolean isConstructed) {
         this(tag, tc, isConstructed, null);
     }
 
     public Tag(int tag, TagClass tc, boolean isConstructed, byte[] encoding) {
+        this(tag, tc, isConstructed, encoding, false);
+    }
+    
+    private Tag(int tag, TagClass tc, boolean isConstructed, byte[] encoding, boolean shared) {
         this.tag = tag;
         this.tc = tc;
         this.isConstructed = isConstructed;
         this.encoding = encoding;
+        this.shared = shared;
+    }
+    
+    /**
+     * Returns a shared instance for a tag that is encoded in a single 
+     * octet. Shared instances are immutable, use copy() to obtain an 
+     * instance that may be modified.
+     * 
+     * @throws IllegalArgumentException if b starts a complex tag encoding
+     */
+    public static Tag forSingleOctet(byte b) {
+        Tag ret = SINGLE_OCTET_TAGS[b & 0xff];
+        if (ret == null)
+            throw new IllegalArgumentException("Complex tag encodings need more than one octet");
+        return ret;
+    }
+    
+    public boolean isShared() {
+        return shared;
+    }
+    
+    public Tag copy() {
+        return new Tag(tag, tc, isConstructed, encoding);
     }
 
     public byte[] getEncoding() {
@@ -63,6 +106,7 @@ public class Tag {
     public void setConstructed(boolean isConstructed) {
         if (isConstructed == this.isConstructed)
             return;
+        checkMutable();
         this.isConstructed = isConstructed;
         this.encoding = null;
     }
@@ -74,11 +118,13 @@ public class Tag {
     public void setTag(int tag) {
         if (tag == this.tag)
             return;
+        checkMutable();
         this.tag = tag;
         this.encoding = null;
     }
     
     public void invalidateEncoding() {
+        checkMutable();
         this.encoding = null;
     }
 
@@ -89,6 +135,7 @@ public class Tag {
     public void setTagClass(TagClass tagClass) {
         if (tagClass == this.tc)
             return;
+        checkMutable();
         this.tc = tagClass;
         this.encoding = null;
     }
@@ -97,6 +144,11 @@ public class Tag {
         return encoding != null;
     }
 
+    private void checkMutable() {
+        if (shared)
+            throw new UnsupportedOperationException("Shared tags must not be modified");
+    }
+
     private byte[] computeEncoding() {
         if (tag < 31) {
             byte tagByte = isConstructed ? Header.CONSTRUCTED_MASK : (byte) 0x00;
@@ -129,7 +181,7 @@ public class Tag {
         return out;
     }
 
-    static int determineNumberOfShifts(int value, int shiftBy) {
+    static int determineNumberOfShifts(long value, int shiftBy) {
         int i;
         for (i = 0; value > 0; i++) {
             value >>= shiftBy;
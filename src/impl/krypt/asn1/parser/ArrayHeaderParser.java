@@ -0,0 +1,125 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.Header;
+import impl.krypt.asn1.Length;
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.ParsedHeader;
+import impl.krypt.asn1.Tag;
+import impl.krypt.asn1.TagClass;
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+/**
+ * Decodes headers straight from the backing array of an ArrayInputStream,
+ * avoiding a call to InputStream.read() for every tag and length octet.
+ * Any other InputStream is parsed the same way PullHeaderParser does it.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class ArrayHeaderParser extends PullHeaderParser {
+    
+    public ArrayHeaderParser() { }
+
+    @Override
+    public ParsedHeader next(InputStream in) {
+        if (in == null) throw new NullPointerException();
+        if (!(in instanceof ArrayInputStream))
+            return super.next(in);
+        
+        ArrayInputStream ain = (ArrayInputStream) in;
+        if (ain.pos == ain.limit)
+            return null;
+        
+        Tag tag = parseTag(ain);
+        Length length = parseLength(ain);
+        
+        if (length.isInfiniteLength() && !tag.isConstructed())
+            throw new ParseException("Infinite length values must be constructed");
+        
+        return new ParsedHeaderImpl(tag, length, ain);
+    }
+    
+    private static byte nextByte(ArrayInputStream in) {
+        if (in.pos == in.limit)
+            throw new ParseException("EOF reached.");
+        return in.buf[in.pos++];
+    }
+    
+    private static Tag parseTag(ArrayInputStream in) {
+        int start = in.pos;
+        byte b = in.buf[in.pos++];
+        
+        if (!matchMask(b, Header.COMPLEX_TAG_MASK))
+            return Tag.forSingleOctet(b);
+        
+        boolean isConstructed = matchMask(b, Header.CONSTRUCTED_MASK);
+        TagClass tc = TagClass.of((byte)(b & TagClass.PRIVATE.getMask()));
+        int tag = 0;
+        b = nextByte(in);
+        if (b == Header.INFINITE_LENGTH_MASK)
+            throw new ParseException("Bits 7 to 1 of the first subsequent octet shall not be 0 for complex tag encodings");
+
+        while (matchMask(b, Header.INFINITE_LENGTH_MASK)) {
+            if (tag > MAX_TAG)
+                throw new ParseException("Complex tag too long.");
+            tag <<= 7;
+            tag |= (b & 0x7f);
+            b = nextByte(in);
+        }
+
+        //final byte
+        tag <<= 7;
+        tag |= (b & 0x7f);
+
+        return new Tag(tag, tc, isConstructed, Arrays.copyOfRange(in.buf, start, in.pos));
+    }
+    
+    private static Length parseLength(ArrayInputStream in) {
+        int start = in.pos;
+        byte b = nextByte(in);
+        
+        if (b == Header.INFINITE_LENGTH_MASK || !matchMask(b, Header.INFINITE_LENGTH_MASK))
+            return Length.forSingleOctet(b);
+        
+        if ((b & 0xff) == 0xff)
+            throw new ParseException("Initial octet of complex definite length shall not be 0xFF");
+        
+        long len = 0;
+        for (int i = b & 0x7f; i > 0; i--) {
+            if (len > MAX_LENGTH)
+                throw new ParseException("Definite value length too long.");
+            len <<= 8;
+            len |= (nextByte(in) & 0xff);
+        }
+        
+        return new Length(len, false, Arrays.copyOfRange(in.buf, start, in.pos));
+    }
+}
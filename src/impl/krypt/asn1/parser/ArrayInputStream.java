@@ -0,0 +1,179 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An InputStream over an in-memory byte array. In contrast to 
+ * java.io.ByteArrayInputStream, the backing array and the current position
+ * are accessible, which allows parsers to decode directly from the array
+ * instead of going through read() for every single byte.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class ArrayInputStream extends InputStream implements SeekableInput {
+
+    final byte[] buf;
+    final int start;
+    final int limit;
+    int pos;
+    private int mark;
+    
+    public ArrayInputStream(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+    
+    public ArrayInputStream(byte[] buf, int off, int len) {
+        if (buf == null) throw new NullPointerException();
+        if (off < 0 || len < 0 || len > buf.length - off) 
+            throw new IndexOutOfBoundsException();
+        
+        this.buf = buf;
+        this.start = off;
+        this.limit = off + len;
+        this.pos = off;
+        this.mark = off;
+    }
+    
+    public ArrayInputStream(ByteBuffer buffer) {
+        this(arrayOf(buffer), 
+             buffer.arrayOffset() + buffer.position(), 
+             buffer.remaining());
+    }
+    
+    private static byte[] arrayOf(ByteBuffer buffer) {
+        if (!buffer.hasArray())
+            throw new IllegalArgumentException("ByteBuffer is not backed by an accessible array");
+        return buffer.array();
+    }
+
+    @Override
+    public int read() {
+        if (pos == limit)
+            return -1;
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (b == null) throw new NullPointerException();
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (pos == limit)
+            return -1;
+        
+        int toRead = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, toRead);
+        pos += toRead;
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0)
+            return 0;
+        int skipped = (int) Math.min(n, limit - pos);
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = pos;
+    }
+
+    @Override
+    public synchronized void reset() {
+        pos = mark;
+    }
+    
+    @Override
+    public void close() {
+        //do nothing
+    }
+    
+    public byte[] getBuffer() {
+        return buf;
+    }
+    
+    /**
+     * @return the absolute index of the next byte to be read within the
+     * backing array
+     */
+    public int getPosition() {
+        return pos;
+    }
+    
+    /**
+     * @return the absolute index within the backing array where this 
+     * stream ends
+     */
+    public int getLimit() {
+        return limit;
+    }
+    
+    @Override
+    public long position() {
+        return pos;
+    }
+
+    @Override
+    public void position(long position) {
+        if (position < start || position > limit)
+            throw new IllegalArgumentException("Position out of bounds: " + position);
+        this.pos = (int) position;
+    }
+
+    @Override
+    public long limit() {
+        return limit;
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        if (position < start || length < 0 || position > limit - length)
+            throw new ParseException("Premature end of value detected.");
+        return ByteBuffer.wrap(buf, (int) position, length).slice().asReadOnlyBuffer();
+    }
+}
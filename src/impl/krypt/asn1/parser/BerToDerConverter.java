@@ -0,0 +1,433 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.Header;
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.SerializeException;
+import impl.krypt.asn1.Tag;
+import impl.krypt.asn1.TagClass;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Converts BER encodings to DER while streaming from an InputStream to an
+ * OutputStream. Infinite lengths are replaced by definite ones, lengths
+ * are encoded in their minimal form and constructed encodings of the 
+ * universal string types are merged into a single primitive value. 
+ * 
+ * As the header of a constructed value can only be written once the 
+ * length of its converted contents is known, each top-level value is 
+ * converted in two steps. The first step reads the input once, appends 
+ * the contents of all primitive values to a single SpillBuffer and 
+ * records tag and converted length of every element in primitive arrays.
+ * The second step writes the headers from these records, interleaved 
+ * with the contents read back from the buffer. Every content byte is 
+ * therefore copied only twice regardless of the nesting depth, and 
+ * content exceeding the spill threshold is moved to a temporary file, so
+ * memory consumption stays bounded by the threshold plus a few bytes per 
+ * element.
+ * 
+ * The components of a universal SET are written in DER order: by tag 
+ * class, tag number and finally by their converted encodings, which 
+ * covers SET as well as SET OF. To that end, the converted components of
+ * a SET are collected in a SpillBuffer of their own and copied from there
+ * once they have been sorted. Implicitly tagged SETs and constructed 
+ * strings cannot be recognized from the encoding and are treated like any
+ * other constructed value.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class BerToDerConverter {
+    
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+    
+    private static final int BIT_STRING = 0x03;
+    private static final int SET = 0x11;
+    
+    private static final TagClass[] TAG_CLASSES = TagClass.values();
+    private static final int TAG_CLASS_MASK = 0x03;
+    private static final int CONSTRUCTED = 0x04;
+    private static final int UNUSED_BITS = 0x08;
+    private static final int UNUSED_BITS_SHIFT = 8;
+    
+    private final int spillThreshold;
+    private final HeaderCursor cursor;
+    private final byte[] copyBuf;
+    
+    private InputStream in;
+    private long pos;
+    private int unusedBits;
+    
+    /* the elements of the current top-level value in document order */
+    private int[] tags = new int[64];
+    private int[] flags = new int[64];
+    private long[] lengths = new long[64];
+    /* the index following the last descendant of each element */
+    private int[] ends = new int[64];
+    private int size;
+    
+    public BerToDerConverter() {
+        this(DEFAULT_SPILL_THRESHOLD);
+    }
+    
+    public BerToDerConverter(int spillThreshold) {
+        if (spillThreshold < 0) throw new IllegalArgumentException("Threshold must not be negative");
+        
+        this.spillThreshold = spillThreshold;
+        this.cursor = new HeaderCursor();
+        this.copyBuf = new byte[8192];
+    }
+    
+    /**
+     * Converts all elements found in the source until it is exhausted.
+     */
+    public void convert(InputStream in, OutputStream out) {
+        if (in == null) throw new NullPointerException();
+        if (out == null) throw new NullPointerException();
+        
+        this.in = in;
+        this.pos = 0;
+        cursor.reset(in);
+        try {
+            while (nextHeader(false)) {
+                if (cursor.isEndOfContents())
+                    throw new ParseException("Unexpected END OF CONTENTS");
+                if (cursor.isConstructed())
+                    convertConstructed(out);
+                else {
+                    writeHeader(out, cursor.getTag(), cursor.getTagClass(), false, cursor.getLength());
+                    copyValue(out, cursor.getLength());
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new SerializeException(ex);
+        }
+        finally {
+            this.in = null;
+        }
+    }
+    
+    private void convertConstructed(OutputStream out) throws IOException {
+        SpillBuffer contents = new SpillBuffer(spillThreshold);
+        try {
+            size = 0;
+            collectElement(contents);
+            InputStream values = contents.openStream();
+            try {
+                writeElements(values, out);
+            }
+            finally {
+                values.close();
+            }
+        }
+        finally {
+            contents.dispose();
+        }
+    }
+    
+    /* Appends the converted contents of primitive values to contents and
+     * records the element. Returns the length of its DER encoding. */
+    private long collectElement(OutputStream contents) throws IOException {
+        int tag = cursor.getTag();
+        TagClass tagClass = cursor.getTagClass();
+        boolean isInfinite = cursor.isInfiniteLength();
+        long length = cursor.getLength();
+        int node = add(tag, tagClass);
+        
+        if (!cursor.isConstructed()) {
+            copyValue(contents, length);
+        }
+        else if (tagClass == TagClass.UNIVERSAL && isStringType(tag)) {
+            unusedBits = -1;
+            length = mergeChunks(contents, tag, isInfinite, length);
+            if (tag == BIT_STRING) {
+                flags[node] |= UNUSED_BITS | ((unusedBits == -1 ? 0 : unusedBits) << UNUSED_BITS_SHIFT);
+                length++;
+            }
+        }
+        else {
+            flags[node] |= CONSTRUCTED;
+            length = collectContents(contents, isInfinite, length);
+        }
+        
+        lengths[node] = length;
+        ends[node] = size;
+        return encodedHeaderLength(tag, length) + length;
+    }
+    
+    private long collectContents(OutputStream contents, boolean isInfinite, long length) throws IOException {
+        long end = pos + length;
+        long converted = 0;
+        
+        while (isInfinite || pos < end) {
+            nextHeader(true);
+            if (cursor.isEndOfContents()) {
+                if (isInfinite)
+                    return converted;
+                throw new ParseException("Unexpected END OF CONTENTS");
+            }
+            converted += collectElement(contents);
+            if (!isInfinite && pos > end)
+                throw new ParseException("Length of contents exceeds the length of the value");
+        }
+        return converted;
+    }
+    
+    /* Returns the number of content bytes written to out */
+    private long mergeChunks(OutputStream out, int tag, boolean isInfinite, long length) throws IOException {
+        long end = pos + length;
+        long merged = 0;
+        
+        while (isInfinite || pos < end) {
+            nextHeader(true);
+            if (cursor.isEndOfContents()) {
+                if (isInfinite)
+                    return merged;
+                throw new ParseException("Unexpected END OF CONTENTS");
+            }
+            if (cursor.getTag() != tag || cursor.getTagClass() != TagClass.UNIVERSAL)
+                throw new ParseException("Chunks of a constructed string must have the tag of the string");
+            
+            if (cursor.isConstructed())
+                merged += mergeChunks(out, tag, cursor.isInfiniteLength(), cursor.getLength());
+            else if (tag == BIT_STRING)
+                merged += copyBitStringChunk(out, cursor.getLength());
+            else
+                merged += copyValue(out, cursor.getLength());
+            
+            if (!isInfinite && pos > end)
+                throw new ParseException("Length of contents exceeds the length of the value");
+        }
+        return merged;
+    }
+    
+    /* Writes the recorded elements, taking the contents of primitive 
+     * values from values */
+    private void writeElements(InputStream values, OutputStream out) throws IOException {
+        for (int node = 0; node < size; node = ends[node])
+            writeElement(values, out, node);
+    }
+    
+    private void writeElement(InputStream values, OutputStream out, int node) throws IOException {
+        int f = flags[node];
+        boolean isConstructed = (f & CONSTRUCTED) != 0;
+        long length = lengths[node];
+        TagClass tagClass = TAG_CLASSES[f & TAG_CLASS_MASK];
+        writeHeader(out, tags[node], tagClass, isConstructed, length);
+        
+        if (isConstructed) {
+            if (tags[node] == SET && tagClass == TagClass.UNIVERSAL)
+                writeSetComponents(values, out, node);
+            else {
+                for (int child = node + 1; child < ends[node]; child = ends[child])
+                    writeElement(values, out, child);
+            }
+            return;
+        }
+        if ((f & UNUSED_BITS) != 0) {
+            out.write(f >>> UNUSED_BITS_SHIFT);
+            length--;
+        }
+        copy(values, out, length);
+    }
+    
+    private void writeSetComponents(InputStream values, OutputStream out, int node) throws IOException {
+        int count = 0;
+        for (int child = node + 1; child < ends[node]; child = ends[child])
+            count++;
+        
+        final int[] children = new int[count];
+        final long[] offsets = new long[count + 1];
+        final SpillBuffer components = new SpillBuffer(spillThreshold);
+        try {
+            int i = 0;
+            for (int child = node + 1; child < ends[node]; child = ends[child]) {
+                children[i] = child;
+                offsets[i++] = components.getLength();
+                writeElement(values, components, child);
+            }
+            offsets[count] = components.getLength();
+            components.close();
+            
+            Integer[] order = new Integer[count];
+            for (i = 0; i < count; i++)
+                order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return compareComponents(components, children[a], offsets[a], offsets[a + 1], 
+                                             children[b], offsets[b], offsets[b + 1]);
+                }
+            });
+            
+            for (Integer index : order)
+                components.writeTo(out, offsets[index], offsets[index + 1] - offsets[index]);
+        }
+        finally {
+            components.dispose();
+        }
+    }
+    
+    /* Orders by tag class, tag number, then by the encodings as octet 
+     * strings */
+    private int compareComponents(SpillBuffer components, 
+                                  int node1, long start1, long end1, 
+                                  int node2, long start2, long end2) {
+        int class1 = flags[node1] & TAG_CLASS_MASK;
+        int class2 = flags[node2] & TAG_CLASS_MASK;
+        if (class1 != class2)
+            return class1 < class2 ? -1 : 1;
+        if (tags[node1] != tags[node2])
+            return tags[node1] < tags[node2] ? -1 : 1;
+        
+        long len1 = end1 - start1;
+        long len2 = end2 - start2;
+        long min = Math.min(len1, len2);
+        for (long i = 0; i < min; i++) {
+            int diff = components.byteAt(start1 + i) - components.byteAt(start2 + i);
+            if (diff != 0)
+                return diff;
+        }
+        return len1 == len2 ? 0 : (len1 < len2 ? -1 : 1);
+    }
+    
+    private int add(int tag, TagClass tagClass) {
+        if (size == tags.length) {
+            int newSize = size * 2;
+            tags = Arrays.copyOf(tags, newSize);
+            flags = Arrays.copyOf(flags, newSize);
+            lengths = Arrays.copyOf(lengths, newSize);
+            ends = Arrays.copyOf(ends, newSize);
+        }
+        tags[size] = tag;
+        flags[size] = tagClass.ordinal();
+        return size++;
+    }
+    
+    private long copyBitStringChunk(OutputStream out, long length) throws IOException {
+        if (length == 0)
+            throw new ParseException("BIT STRING chunks must contain the number of unused bits");
+        if (unusedBits > 0)
+            throw new ParseException("Only the last chunk of a BIT STRING may have unused bits");
+        
+        int b = in.read();
+        if (b == -1)
+            throw new ParseException("Premature end of value detected.");
+        pos++;
+        unusedBits = b;
+        return copyValue(out, length - 1);
+    }
+    
+    private boolean nextHeader(boolean required) {
+        if (!cursor.next()) {
+            if (required)
+                throw new ParseException("Premature end of value detected.");
+            return false;
+        }
+        pos += cursor.getHeaderLength();
+        return true;
+    }
+    
+    private long copyValue(OutputStream out, long length) throws IOException {
+        copy(in, out, length);
+        pos += length;
+        return length;
+    }
+    
+    private void copy(InputStream from, OutputStream out, long length) throws IOException {
+        while (length > 0) {
+            int read = from.read(copyBuf, 0, (int) Math.min(copyBuf.length, length));
+            if (read == -1)
+                throw new ParseException("Premature end of value detected.");
+            out.write(copyBuf, 0, read);
+            length -= read;
+        }
+    }
+    
+    private static int encodedHeaderLength(int tag, long length) {
+        int ret = 1;
+        if (tag > 30) {
+            for (int tmp = tag; tmp > 0; tmp >>>= 7)
+                ret++;
+        }
+        ret++;
+        if (length > 127) {
+            for (long tmp = length; tmp > 0; tmp >>>= 8)
+                ret++;
+        }
+        return ret;
+    }
+    
+    private static void writeHeader(OutputStream out, 
+                                    int tag, 
+                                    TagClass tagClass, 
+                                    boolean isConstructed, 
+                                    long length) throws IOException {
+        out.write(new Tag(tag, tagClass, isConstructed).getEncoding());
+        
+        if (length <= 127) {
+            out.write((int) length);
+            return;
+        }
+        
+        int numBytes = 0;
+        for (long tmp = length; tmp > 0; tmp >>>= 8)
+            numBytes++;
+        out.write(Header.INFINITE_LENGTH_MASK | numBytes);
+        for (int i = numBytes - 1; i >= 0; i--)
+            out.write((int) (length >>> (i * 8)));
+    }
+    
+    static boolean isStringType(int tag) {
+        switch (tag) {
+            case 0x03: //BIT STRING
+            case 0x04: //OCTET STRING
+            case 0x0c: //UTF8String
+            case 0x12: //NumericString
+            case 0x13: //PrintableString
+            case 0x14: //T61String
+            case 0x15: //VideotexString
+            case 0x16: //IA5String
+            case 0x17: //UTCTime
+            case 0x18: //GeneralizedTime
+            case 0x19: //GraphicString
+            case 0x1a: //VisibleString
+            case 0x1b: //GeneralString
+            case 0x1c: //UniversalString
+            case 0x1e: //BMPString
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An InputStream reading from a ByteBuffer without copying it, allowing 
+ * values to be sliced from it in turn.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+class BufferInputStream extends InputStream implements SeekableInput {
+    
+    private final ByteBuffer buffer;
+    private int mark;
+    
+    BufferInputStream(ByteBuffer buffer) {
+        if (buffer == null) throw new NullPointerException();
+        
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining())
+            return -1;
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        int toRead = Math.min(len, buffer.remaining());
+        buffer.get(b, off, toRead);
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0)
+            return 0;
+        int toSkip = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + toSkip);
+        return toSkip;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public long position() {
+        return buffer.position();
+    }
+
+    @Override
+    public void position(long position) {
+        if (position < 0 || position > buffer.limit())
+            throw new IllegalArgumentException("Position out of bounds: " + position);
+        buffer.position((int) position);
+    }
+
+    @Override
+    public long limit() {
+        return buffer.limit();
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        if (position < 0 || length < 0 || position > buffer.limit() - length)
+            throw new ParseException("Premature end of value detected.");
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit((int) position + length);
+        dup.position((int) position);
+        return dup.slice().asReadOnlyBuffer();
+    }
+}
@@ -28,16 +28,24 @@
 package impl.krypt.asn1.parser;
 
 import impl.krypt.asn1.ParseException;
-import impl.krypt.asn1.ParsedHeader;
-import impl.krypt.asn1.Parser;
-import impl.krypt.asn1.Tag;
-import impl.krypt.asn1.TagClass;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 
 /**
+ * Streams the contents of an infinite length value up to the matching
+ * END OF CONTENTS. Nested infinite length values are handled by the same
+ * instance: the number of infinite length values that are still open 
+ * serves as the stack of the state machine, the values of definite length
+ * elements are passed through as they are. Every byte therefore passes 
+ * through exactly one stream layer, regardless of the nesting depth.
+ * 
+ * If valuesOnly is set, all headers of infinite length values and of 
+ * their chunks are omitted, otherwise the raw encoding including the final
+ * END OF CONTENTS is returned. Chunk headers are parsed with a HeaderCursor,
+ * so reading does not create any objects per chunk, and a single read 
+ * fills the caller's buffer across as many chunks as necessary.
  * 
  * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
  */
@@ -45,183 +53,176 @@ class ChunkInputStream extends FilterInputStream {
 
     private static enum State {
         NEW_HEADER,
-        PROCESS_TAG,
-        PROCESS_LENGTH,
+        PROCESS_HEADER,
         PROCESS_VALUE,
         DONE
     }
     
-    private final Parser parser;
+    private final HeaderCursor cursor;
     private final boolean valuesOnly;
     
-    private ParsedHeader currentHeader;
     private int headerOffset;
+    private long remaining;
+    private int depth;
     private State state;
     
-    ChunkInputStream(InputStream in, Parser parser, boolean valuesOnly) {
+    ChunkInputStream(InputStream in, boolean valuesOnly) {
         super(in);
-        if (parser == null) throw new NullPointerException();
         
-        this.parser = parser;
+        this.cursor = new HeaderCursor(in);
+        this.cursor.setRecording(!valuesOnly);
         this.valuesOnly = valuesOnly;
         this.headerOffset = 0;
+        this.depth = 1;
         this.state = State.NEW_HEADER;
     }
 
     @Override
     public int read() throws IOException {
-        if (State.DONE == state)
-            return -1;
-        return readSingleByte();
+        while (state != State.DONE) {
+            switch (state) {
+                case NEW_HEADER:
+                    readNewHeader();
+                    break;
+                case PROCESS_HEADER: {
+                    int b = cursor.getHeaderBytes()[headerOffset++] & 0xff;
+                    if (headerOffset == cursor.getHeaderLength())
+                        state = afterHeader();
+                    return b;
+                }
+                case PROCESS_VALUE:
+                    return readSingleValueByte();
+                default:
+                    throw new UnsupportedOperationException(state.name());
+            }
+        }
+        return -1;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         if (State.DONE == state)
             return -1;
-        return readMultipleBytes(b, off, len);
+        
+        int read, totalRead = 0;
+        while (totalRead != len && state != State.DONE) {
+            switch (state) {
+                case NEW_HEADER:
+                    readNewHeader();
+                    break;
+                case PROCESS_HEADER:
+                    read = readHeaderBytes(b, off, len - totalRead);
+                    totalRead += read;
+                    off += read;
+                    break;
+                case PROCESS_VALUE:
+                    read = readValueBytes(b, off, len - totalRead);
+                    totalRead += read;
+                    off += read;
+                    break;
+                default:
+                    throw new UnsupportedOperationException(state.name());
+            }
+        }
+        return totalRead;
     }
     
-    private int readSingleByte() throws IOException {
-        switch (state) {
-            case NEW_HEADER: 
-                readNewHeader(); //fallthrough
-            case PROCESS_TAG: {
-                int b = readSingleHeaderByte(currentHeader.getTag().getEncoding(),
-                                            State.PROCESS_LENGTH);
-                if (!valuesOnly)
-                    return b;
-            }
-            case PROCESS_LENGTH: {
-                int b = readSingleHeaderByte(currentHeader.getLength().getEncoding(),
-                                              State.PROCESS_VALUE);
-                checkDone();
-                if (!valuesOnly)
-                    return b;
+    /* Skips through the same state machine as reading, so the matching 
+     * END OF CONTENTS is still detected and nothing beyond it is skipped */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && state != State.DONE) {
+            switch (state) {
+                case NEW_HEADER:
+                    readNewHeader();
+                    break;
+                case PROCESS_HEADER: {
+                    int toSkip = (int) Math.min(n - skipped, cursor.getHeaderLength() - headerOffset);
+                    headerOffset += toSkip;
+                    skipped += toSkip;
+                    if (headerOffset == cursor.getHeaderLength())
+                        state = afterHeader();
+                    break;
+                }
+                case PROCESS_VALUE:
+                    skipped += skipValueBytes(n - skipped);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(state.name());
             }
-            case PROCESS_VALUE:
-                return readSingleValueByte();
-            default:
-                throw new UnsupportedOperationException(state.name());
         }
+        return skipped;
     }
     
-    private void checkDone() {
-        //if state is PROCESS_VALUE, this means that the tag bytes
-        //have been consumed. As an EOC contains no value, we are
-        //done
-        Tag tag = currentHeader.getTag();
-        if (tag.getTag() == 0x00 &&
-            tag.getTagClass().equals(TagClass.UNIVERSAL) &&
-            state == State.PROCESS_VALUE) {
-            state = State.DONE;
+    private long skipValueBytes(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        if (skipped <= 0) {
+            if (in.read() == -1)
+                throw new ParseException("Premature end of value detected.");
+            skipped = 1;
         }
+        remaining -= skipped;
+        if (remaining == 0)
+            state = State.NEW_HEADER;
+        return skipped;
     }
     
-    private int readSingleHeaderByte(byte[] headerPart, State nextState) {
-        byte ret = headerPart[headerOffset];
-        headerOffset++;
-        if (headerOffset == headerPart.length) {
-            headerOffset = 0;
-            state = nextState;
-        }
-        return (ret & 0xff);
+    private int readHeaderBytes(byte[] b, int off, int len) {
+        int available = cursor.getHeaderLength() - headerOffset;
+        int toRead = Math.min(len, available);
+        System.arraycopy(cursor.getHeaderBytes(), headerOffset, b, off, toRead);
+        
+        headerOffset += toRead;
+        if (toRead == available)
+            state = afterHeader();
+        return toRead;
     }
     
     private int readSingleValueByte() throws IOException {
-        int b = currentHeader.getValueStream(valuesOnly).read();
-        if (b == -1) {
+        int b = in.read();
+        if (b == -1)
+            throw new ParseException("Premature end of value detected.");
+        remaining--;
+        if (remaining == 0)
             state = State.NEW_HEADER;
-            b = readSingleByte();
-        }
         return b;
     }
     
-    private int readMultipleBytes(byte[] b, int off, int len) throws IOException {
-        int read, totalRead = 0;
-        while (totalRead != len && state != State.DONE) {
-            read = readMultipleBytesSingleElement(b, off, len);
-            totalRead += read;
-            off += read;
-        }
-        return totalRead;
+    private int readValueBytes(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read == -1)
+            throw new ParseException("Premature end of value detected.");
+        remaining -= read;
+        if (remaining == 0)
+            state = State.NEW_HEADER;
+        return read;
     }
     
-    private int readMultipleBytesSingleElement(byte[] b, int off, int len) throws IOException {
-        int read, totalRead = 0;
-        
-        switch (state) {
-            case NEW_HEADER: 
-                readNewHeader(); //fallthrough
-            case PROCESS_TAG: {
-                read = readHeaderBytes(currentHeader.getTag().getEncoding(),
-                                       State.PROCESS_LENGTH, b, off, len);
-                if (!valuesOnly) {
-                    totalRead += read;
-                    if (totalRead == len)
-                        return totalRead;
-                    off += read;
-                }
-            } //fallthrough
-            case PROCESS_LENGTH: {
-                read = readHeaderBytes(currentHeader.getLength().getEncoding(),
-                                           State.PROCESS_VALUE, b, off, len);
-                
-                checkDone();
-                
-                if (!valuesOnly) {
-                    totalRead += read;
-                    if (totalRead == len || state == State.DONE)
-                        return totalRead;
-                    off += read;
-                }
-            } //fallthrough
-            case PROCESS_VALUE:
-                totalRead += readValueBytes(b, off, len);
-                return totalRead;
-            default:
-                throw new UnsupportedOperationException(state.name());
-        }
+    private State afterHeader() {
+        if (depth == 0)
+            return State.DONE;
+        if (remaining > 0)
+            return State.PROCESS_VALUE;
+        return State.NEW_HEADER;
     }
     
-    private int readHeaderBytes(byte[] headerPart, 
-                                State nextState,
-                                byte[] b,
-                                int off,
-                                int len) {
-        int toRead;
-        int available = headerPart.length - headerOffset;
+    private void readNewHeader() {
+        if (!cursor.next())
+            throw new ParseException("Premature end of value detected.");
         
-        if (len < available) {
-            headerOffset += len;
-            toRead = len;
+        if (cursor.isInfiniteLength()) {
+            depth++;
+            remaining = 0;
         }
         else {
-            state = nextState;
-            headerOffset = 0;
-            toRead = available;
+            if (cursor.isEndOfContents())
+                depth--;
+            remaining = cursor.getLength();
         }
         
-        System.arraycopy(headerPart, headerOffset, b, off, toRead);
-        return toRead;
-    }
-    
-    private int readValueBytes(byte[] b, int off, int len) throws IOException {
-        int read = currentHeader.getValueStream(valuesOnly).read(b, off, len);
-        if (read == -1) {
-            if (state != State.DONE)
-                state = State.NEW_HEADER;
-            read = 0;
-        }
-        return read;
-    }
-    
-    private void readNewHeader() {
-        currentHeader = parser.next(in);
-        if (currentHeader == null)
-            throw new ParseException("Premature end of value detected.");
-        state = State.PROCESS_TAG;
         headerOffset = 0;
+        state = valuesOnly ? afterHeader() : State.PROCESS_HEADER;
     }
 
     @Override
@@ -39,10 +39,10 @@ import java.io.InputStream;
  */
 class DefiniteInputStream extends FilterInputStream {
 
-    private int read = 0;
-    private final int length;
+    private long read = 0;
+    private final long length;
     
-    DefiniteInputStream(InputStream in, int length) {
+    DefiniteInputStream(InputStream in, long length) {
         super(in);
         if (length < 0) throw new IllegalArgumentException("Length must be positive");
         this.length = length;
@@ -53,10 +53,27 @@ class DefiniteInputStream extends FilterInputStream {
         if (read == length)
             return -1;
         int b = super.read();
+        if (b == -1)
+            throw new ParseException("Premature end of value detected.");
         read++;
         return b;
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || read == length)
+            return 0;
+        
+        long skipped = super.skip(Math.min(n, length - read));
+        if (skipped <= 0) {
+            /* skip may return 0 without having reached EOF */
+            read();
+            return 1;
+        }
+        read += skipped;
+        return skipped;
+    }
+
     @Override
     public void close() throws IOException {
         //do nothing
@@ -72,7 +89,7 @@ class DefiniteInputStream extends FilterInputStream {
         int toRead, actuallyRead;
         
         if (length - read < len)
-            toRead = length - read;
+            toRead = (int) (length - read);
         else
             toRead = len;
         
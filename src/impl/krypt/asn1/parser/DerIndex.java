@@ -0,0 +1,331 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.TagClass;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A structural index of an in-memory DER/BER encoding, built in a single
+ * pass. Nodes are numbered in document order and their properties are
+ * kept in parallel primitive arrays, so no objects are created per node.
+ * Once built, any node, its parent, children and siblings as well as its 
+ * value can be accessed in constant time.
+ * 
+ * Offsets are absolute indexes into the backing array. The length of an
+ * infinite length node is the length of its contents without the closing
+ * END OF CONTENTS, which is not indexed as a node of its own. END OF
+ * CONTENTS anywhere else is rejected.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class DerIndex {
+    
+    private static final TagClass[] TAG_CLASSES = TagClass.values();
+    private static final int CONSTRUCTED = 0x04;
+    private static final int INFINITE = 0x08;
+    private static final int TAG_CLASS_MASK = 0x03;
+    
+    private final byte[] buf;
+    private int size;
+    
+    private int[] tags;
+    private int[] flags;
+    private int[] headerOffsets;
+    private int[] valueOffsets;
+    private int[] lengths;
+    private int[] endOffsets;
+    private int[] depths;
+    private int[] parents;
+    private int[] childCounts;
+    private int[] nextSiblings;
+    private int[] childOffsets;
+    private int[] children;
+    
+    private DerIndex(byte[] buf, int capacity) {
+        this.buf = buf;
+        this.tags = new int[capacity];
+        this.flags = new int[capacity];
+        this.headerOffsets = new int[capacity];
+        this.valueOffsets = new int[capacity];
+        this.lengths = new int[capacity];
+        this.endOffsets = new int[capacity];
+        this.depths = new int[capacity];
+        this.parents = new int[capacity];
+        this.childCounts = new int[capacity];
+        this.nextSiblings = new int[capacity];
+    }
+    
+    public static DerIndex build(byte[] der) {
+        return build(new ArrayInputStream(der));
+    }
+    
+    public static DerIndex build(byte[] der, int off, int len) {
+        return build(new ArrayInputStream(der, off, len));
+    }
+    
+    /**
+     * Indexes all elements from the current position of the stream up to
+     * its end. The stream is consumed.
+     */
+    public static DerIndex build(ArrayInputStream in) {
+        DerIndex index = new DerIndex(in.buf, 64);
+        index.fill(in);
+        return index;
+    }
+    
+    private void fill(ArrayInputStream in) {
+        HeaderCursor cursor = new HeaderCursor(in);
+        ElementStack open = new ElementStack();
+        
+        while (true) {
+            int headerOffset = in.pos;
+            if (!cursor.next())
+                break;
+            
+            if (cursor.isEndOfContents()) {
+                if (!open.isInfiniteLength())
+                    throw new ParseException("END OF CONTENTS outside of an infinite length value");
+                if (cursor.getLength() != 0)
+                    throw new ParseException("END OF CONTENTS must not have a value");
+                int node = open.getId(open.pop());
+                lengths[node] = headerOffset - valueOffsets[node];
+                endOffsets[node] = in.pos;
+            }
+            else {
+                if (cursor.getLength() > Integer.MAX_VALUE)
+                    throw new ParseException("Value too large for a single buffer");
+                if (!cursor.isInfiniteLength() && in.limit - in.pos < cursor.getLength())
+                    throw new ParseException("Premature end of value detected.");
+                
+                int depth = open.depth();
+                int parent = depth > 0 ? open.getId(depth - 1) : -1;
+                int node = add(cursor, headerOffset, in.pos, depth, parent);
+                if (parent != -1)
+                    childCounts[parent]++;
+                
+                if (cursor.isConstructed()) {
+                    long end = cursor.isInfiniteLength() ? ElementStack.INFINITE : endOffsets[node];
+                    open.push(cursor.getTag(), cursor.getTagClass(), end, node);
+                }
+                else {
+                    cursor.skipValue();
+                }
+            }
+            
+            while (open.popDefinite(in.pos)) {
+                //close all definite length values ending here
+            }
+        }
+        
+        if (open.depth() > 0)
+            throw new ParseException("Premature end of value detected.");
+        
+        linkChildren();
+    }
+    
+    /* Lays out the children of each node contiguously in document order,
+     * so that the n-th child can be looked up directly */
+    private void linkChildren() {
+        childOffsets = new int[size];
+        children = new int[size];
+        int offset = 0;
+        for (int node = 0; node < size; node++) {
+            childOffsets[node] = offset;
+            offset += childCounts[node];
+        }
+        
+        int[] filled = new int[size];
+        int previousTop = -1;
+        for (int node = 0; node < size; node++) {
+            nextSiblings[node] = -1;
+            int parent = parents[node];
+            if (parent == -1) {
+                if (previousTop != -1)
+                    nextSiblings[previousTop] = node;
+                previousTop = node;
+            }
+            else {
+                int slot = childOffsets[parent] + filled[parent]++;
+                children[slot] = node;
+                if (filled[parent] > 1)
+                    nextSiblings[children[slot - 1]] = node;
+            }
+        }
+    }
+    
+    private int add(HeaderCursor cursor, int headerOffset, int valueOffset, int depth, int parent) {
+        if (size == tags.length) {
+            int newSize = size * 2;
+            tags = grow(tags, newSize);
+            flags = grow(flags, newSize);
+            headerOffsets = grow(headerOffsets, newSize);
+            valueOffsets = grow(valueOffsets, newSize);
+            lengths = grow(lengths, newSize);
+            endOffsets = grow(endOffsets, newSize);
+            depths = grow(depths, newSize);
+            parents = grow(parents, newSize);
+            childCounts = grow(childCounts, newSize);
+            nextSiblings = grow(nextSiblings, newSize);
+        }
+        
+        int node = size++;
+        int f = cursor.getTagClass().ordinal();
+        if (cursor.isConstructed())
+            f |= CONSTRUCTED;
+        if (cursor.isInfiniteLength())
+            f |= INFINITE;
+        
+        tags[node] = cursor.getTag();
+        flags[node] = f;
+        headerOffsets[node] = headerOffset;
+        valueOffsets[node] = valueOffset;
+        /* definite lengths have been checked against the buffer before */
+        lengths[node] = (int) cursor.getLength();
+        endOffsets[node] = valueOffset + lengths[node];
+        depths[node] = depth;
+        parents[node] = parent;
+        childCounts[node] = 0;
+        return node;
+    }
+    
+    private static int[] grow(int[] a, int newSize) {
+        int[] ret = new int[newSize];
+        System.arraycopy(a, 0, ret, 0, a.length);
+        return ret;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public byte[] getBuffer() {
+        return buf;
+    }
+    
+    public int getTag(int node) {
+        return tags[check(node)];
+    }
+    
+    public TagClass getTagClass(int node) {
+        return TAG_CLASSES[flags[check(node)] & TAG_CLASS_MASK];
+    }
+    
+    public boolean isConstructed(int node) {
+        return (flags[check(node)] & CONSTRUCTED) != 0;
+    }
+    
+    public boolean isInfiniteLength(int node) {
+        return (flags[check(node)] & INFINITE) != 0;
+    }
+    
+    public int getHeaderOffset(int node) {
+        return headerOffsets[check(node)];
+    }
+    
+    public int getValueOffset(int node) {
+        return valueOffsets[check(node)];
+    }
+    
+    public int getLength(int node) {
+        return lengths[check(node)];
+    }
+    
+    /**
+     * @return the offset of the first byte following the node's encoding
+     */
+    public int getEndOffset(int node) {
+        return endOffsets[check(node)];
+    }
+    
+    public int getDepth(int node) {
+        return depths[check(node)];
+    }
+    
+    /**
+     * @return the parent node or -1 for top-level nodes
+     */
+    public int getParent(int node) {
+        return parents[check(node)];
+    }
+    
+    public int getChildCount(int node) {
+        return childCounts[check(node)];
+    }
+    
+    /**
+     * @return the first child node or -1 if there is none
+     */
+    public int getFirstChild(int node) {
+        return childCounts[check(node)] > 0 ? node + 1 : -1;
+    }
+    
+    /**
+     * @return the next node sharing the same parent or -1 if there is none
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[check(node)];
+    }
+    
+    /**
+     * @return the n-th child of node or -1 if it has less children
+     */
+    public int getChild(int node, int n) {
+        if (n < 0 || n >= getChildCount(node))
+            return -1;
+        return children[childOffsets[node] + n];
+    }
+    
+    /**
+     * @return a read-only view on the node's value
+     */
+    public ByteBuffer getValue(int node) {
+        return ByteBuffer.wrap(buf, valueOffsets[check(node)], lengths[node])
+                         .slice()
+                         .asReadOnlyBuffer();
+    }
+    
+    /**
+     * @return a read-only view on the complete encoding of the node, 
+     * including its header
+     */
+    public ByteBuffer getEncoding(int node) {
+        int start = headerOffsets[check(node)];
+        return ByteBuffer.wrap(buf, start, getEndOffset(node) - start)
+                         .slice()
+                         .asReadOnlyBuffer();
+    }
+    
+    private int check(int node) {
+        if (node < 0 || node >= size)
+            throw new IndexOutOfBoundsException("No such node: " + node);
+        return node;
+    }
+}
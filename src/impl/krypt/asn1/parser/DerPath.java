@@ -0,0 +1,129 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.ParsedHeader;
+import impl.krypt.asn1.Tag;
+import impl.krypt.asn1.TagClass;
+import java.io.InputStream;
+
+
+/**
+ * Selects a single element by following a path of child indexes, the 
+ * first index selecting among the top-level elements of the source. All
+ * other elements are skipped using their header lengths only, nothing 
+ * besides the target element is decoded. For a certificate, e.g., the 
+ * path { 0, 0, 5 } selects the subject of the first certificate found.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class DerPath {
+    
+    private static final long UNBOUNDED = -1;
+    
+    private DerPath() {}
+    
+    /**
+     * @return the header of the target element, positioned at the start of
+     * its value, or null if the path does not exist
+     */
+    public static ParsedHeader extract(InputStream in, int... path) {
+        if (in == null) throw new NullPointerException();
+        if (path == null) throw new NullPointerException();
+        if (path.length == 0) throw new IllegalArgumentException("Path must not be empty");
+        
+        HeaderCursor cursor = new HeaderCursor(in);
+        long end = UNBOUNDED;
+        long bound = UNBOUNDED;
+        boolean isInfinite = false;
+        
+        for (int i = 0; i < path.length; i++) {
+            if (path[i] < 0)
+                throw new IllegalArgumentException("Negative index in path: " + path[i]);
+            
+            for (int j = 0; j < path[i]; j++) {
+                if (!nextChild(cursor, end, isInfinite))
+                    return null;
+                cursor.skipValue();
+                checkBound(cursor.getConsumed(), bound);
+            }
+            
+            if (i == path.length - 1) {
+                if (end != UNBOUNDED && cursor.getConsumed() >= end)
+                    return null;
+                long start = cursor.getConsumed();
+                ParsedHeader h = new ArrayHeaderParser().next(in);
+                if (h == null && (end != UNBOUNDED || isInfinite))
+                    throw new ParseException("Premature end of value detected.");
+                if (h == null || (isInfinite && isEndOfContents(h)))
+                    return null;
+                long valueStart = start + h.getHeaderLength();
+                checkBound(valueStart, bound);
+                if (!h.getLength().isInfiniteLength())
+                    checkBound(valueStart + h.getLength().getLength(), bound);
+                return h;
+            }
+            
+            if (!nextChild(cursor, end, isInfinite) || !cursor.isConstructed())
+                return null;
+            checkBound(cursor.getConsumed(), bound);
+            
+            isInfinite = cursor.isInfiniteLength();
+            end = isInfinite ? UNBOUNDED : cursor.getConsumed() + cursor.getLength();
+            if (end != UNBOUNDED) {
+                checkBound(end, bound);
+                bound = end;
+            }
+        }
+        
+        throw new IllegalStateException("Empty path");
+    }
+    
+    /* bound is the end of the innermost enclosing definite length value */
+    private static void checkBound(long position, long bound) {
+        if (bound != UNBOUNDED && position > bound)
+            throw new ParseException("Nested value exceeds the length of the enclosing value");
+    }
+    
+    private static boolean isEndOfContents(ParsedHeader h) {
+        Tag t = h.getTag();
+        return t.getTag() == 0x00 && t.getTagClass() == TagClass.UNIVERSAL && !t.isConstructed();
+    }
+    
+    private static boolean nextChild(HeaderCursor cursor, long end, boolean isInfinite) {
+        if (end != UNBOUNDED && cursor.getConsumed() >= end)
+            return false;
+        if (!cursor.next()) {
+            if (end != UNBOUNDED || isInfinite)
+                throw new ParseException("Premature end of value detected.");
+            return false;
+        }
+        return !(isInfinite && cursor.isEndOfContents());
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.TagClass;
+
+
+/**
+ * Checks in a single pass whether an encoding conforms to the Distinguished
+ * Encoding Rules without decoding it: tags and lengths must be encoded 
+ * minimally, infinite lengths are not allowed, INTEGER and ENUMERATED 
+ * values must be encoded in the minimal number of octets, BOOLEAN values 
+ * must be 0x00 or 0xff, string types must be primitive and the components
+ * of a SET must be sorted by their tags, tag class before tag number, and
+ * by their encodings second. END OF CONTENTS may not appear at all, and 
+ * the input must consist of exactly one value. Headers are walked with a 
+ * HeaderCursor, values are inspected in place, so no objects are created
+ * per element. An instance may be reused for any number of inputs, but it
+ * is not thread-safe.
+ * 
+ * The first violation found is reported with the offset of the header of
+ * the offending element, relative to the start of the input.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class DerValidator {
+    
+    private static final int END_OF_CONTENTS = 0x00;
+    private static final int BOOLEAN = 0x01;
+    private static final int INTEGER = 0x02;
+    private static final int ENUMERATED = 0x0a;
+    private static final int SET = 0x11;
+    
+    private final HeaderCursor cursor = new HeaderCursor();
+    
+    private int[] ends = new int[16];
+    private boolean[] isSet = new boolean[16];
+    private int[] previousClasses = new int[16];
+    private int[] previousTags = new int[16];
+    private int[] previousStarts = new int[16];
+    private int[] previousEnds = new int[16];
+    private int depth;
+    
+    private String violation;
+    private int violationOffset = -1;
+    
+    public boolean validate(byte[] der) {
+        if (der == null) throw new NullPointerException();
+        return validate(new ArrayInputStream(der));
+    }
+    
+    public boolean validate(byte[] der, int off, int len) {
+        if (der == null) throw new NullPointerException();
+        return validate(new ArrayInputStream(der, off, len));
+    }
+    
+    /**
+     * Validates the value remaining in the source, which must contain 
+     * exactly one value. The source is consumed up to the first violation.
+     * 
+     * @return true if the encoding conforms to DER
+     */
+    public boolean validate(ArrayInputStream in) {
+        if (in == null) throw new NullPointerException();
+        
+        cursor.reset(in);
+        depth = 0;
+        violation = null;
+        violationOffset = -1;
+        
+        byte[] buf = in.buf;
+        int base = in.pos;
+        int headerStart = base;
+        
+        try {
+            while (true) {
+                while (depth > 0 && in.pos == ends[depth - 1])
+                    depth--;
+                
+                headerStart = in.pos;
+                if (depth == 0 && headerStart != base) {
+                    if (headerStart < in.limit)
+                        return fail(headerStart - base, "Data after the end of the value");
+                    return true;
+                }
+                if (!cursor.next())
+                    return fail(0, "No value found");
+                
+                int offset = headerStart - base;
+                if (cursor.isInfiniteLength())
+                    return fail(offset, "Infinite length encoding");
+                
+                int tag = cursor.getTag();
+                TagClass tagClass = cursor.getTagClass();
+                boolean isUniversal = tagClass == TagClass.UNIVERSAL;
+                if (isUniversal && tag == END_OF_CONTENTS)
+                    return fail(offset, "END OF CONTENTS outside of an infinite length value");
+                long length = cursor.getLength();
+                if (tag < 0x1f && (buf[headerStart] & 0x1f) == 0x1f)
+                    return fail(offset, "Non-minimal tag encoding");
+                if (cursor.getHeaderLength() != tagOctets(tag) + lengthOctets(length))
+                    return fail(offset, "Non-minimal length encoding");
+                
+                int valueStart = in.pos;
+                int limit = depth > 0 ? ends[depth - 1] : in.limit;
+                if (length > limit - valueStart) {
+                    return fail(offset, depth > 0 ? "Nested value exceeds the length of the enclosing value" 
+                                                  : "Premature end of value detected.");
+                }
+                int valueEnd = valueStart + (int) length;
+                
+                if (depth > 0 && isSet[depth - 1]) {
+                    int previous = previousStarts[depth - 1];
+                    if (previous != -1 && 
+                        compare(previousClasses[depth - 1], previousTags[depth - 1], buf, previous, previousEnds[depth - 1], 
+                                tagClass.ordinal(), tag, headerStart, valueEnd) > 0)
+                        return fail(offset, "SET components are not sorted");
+                    previousClasses[depth - 1] = tagClass.ordinal();
+                    previousTags[depth - 1] = tag;
+                    previousStarts[depth - 1] = headerStart;
+                    previousEnds[depth - 1] = valueEnd;
+                }
+                
+                if (isUniversal) {
+                    String error = checkValue(tag, cursor.isConstructed(), buf, valueStart, (int) length);
+                    if (error != null)
+                        return fail(offset, error);
+                }
+                
+                if (cursor.isConstructed())
+                    push(valueEnd, isUniversal && tag == SET);
+                else
+                    cursor.skipValue();
+            }
+        }
+        catch (ParseException ex) {
+            return fail(headerStart - base, ex.getMessage());
+        }
+    }
+    
+    /**
+     * @return the reason why the last input was rejected, or null if it was
+     * valid
+     */
+    public String getViolation() {
+        return violation;
+    }
+    
+    /**
+     * @return the offset of the element that was rejected, or -1 if the last
+     * input was valid
+     */
+    public int getViolationOffset() {
+        return violationOffset;
+    }
+    
+    private boolean fail(int offset, String message) {
+        this.violation = message;
+        this.violationOffset = offset;
+        return false;
+    }
+    
+    private static String checkValue(int tag, boolean isConstructed, byte[] buf, int off, int len) {
+        switch (tag) {
+            case BOOLEAN:
+                if (isConstructed)
+                    return "BOOLEAN must be primitive";
+                if (len != 1)
+                    return "BOOLEAN must consist of a single octet";
+                if (buf[off] != 0x00 && buf[off] != (byte) 0xff)
+                    return "BOOLEAN must be 0x00 or 0xff";
+                return null;
+            case INTEGER:
+            case ENUMERATED:
+                if (isConstructed)
+                    return "INTEGER must be primitive";
+                if (len == 0)
+                    return "INTEGER must not be empty";
+                if (len > 1) {
+                    byte first = buf[off];
+                    boolean negative = (buf[off + 1] & 0x80) != 0;
+                    if ((first == 0x00 && !negative) || (first == (byte) 0xff && negative))
+                        return "Non-minimal INTEGER encoding";
+                }
+                return null;
+            default:
+                if (isConstructed && BerToDerConverter.isStringType(tag))
+                    return "Constructed encoding of a string type";
+                return null;
+        }
+    }
+    
+    /* Compares two components by their tag classes in the order of 
+     * TagClass, their tag numbers, then by their encodings as octet 
+     * strings, a prefix ordering first, as required by X.690 */
+    private static int compare(int class1, int tag1, byte[] buf, int start1, int end1, 
+                               int class2, int tag2, int start2, int end2) {
+        if (class1 != class2)
+            return class1 < class2 ? -1 : 1;
+        if (tag1 != tag2)
+            return tag1 < tag2 ? -1 : 1;
+        int len1 = end1 - start1;
+        int len2 = end2 - start2;
+        int min = Math.min(len1, len2);
+        for (int i = 0; i < min; i++) {
+            int diff = (buf[start1 + i] & 0xff) - (buf[start2 + i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return len1 - len2;
+    }
+    
+    private static int tagOctets(int tag) {
+        if (tag < 0x1f)
+            return 1;
+        int n = 1;
+        while (tag > 0) {
+            tag >>>= 7;
+            n++;
+        }
+        return n;
+    }
+    
+    private static int lengthOctets(long length) {
+        if (length < 0x80)
+            return 1;
+        int n = 1;
+        while (length > 0) {
+            length >>>= 8;
+            n++;
+        }
+        return n;
+    }
+    
+    private void push(int end, boolean set) {
+        if (depth == ends.length) {
+            int newSize = depth * 2;
+            int[] newEnds = new int[newSize];
+            boolean[] newIsSet = new boolean[newSize];
+            int[] newPreviousClasses = new int[newSize];
+            int[] newPreviousTags = new int[newSize];
+            int[] newPreviousStarts = new int[newSize];
+            int[] newPreviousEnds = new int[newSize];
+            System.arraycopy(ends, 0, newEnds, 0, depth);
+            System.arraycopy(isSet, 0, newIsSet, 0, depth);
+            System.arraycopy(previousClasses, 0, newPreviousClasses, 0, depth);
+            System.arraycopy(previousTags, 0, newPreviousTags, 0, depth);
+            System.arraycopy(previousStarts, 0, newPreviousStarts, 0, depth);
+            System.arraycopy(previousEnds, 0, newPreviousEnds, 0, depth);
+            ends = newEnds;
+            isSet = newIsSet;
+            previousClasses = newPreviousClasses;
+            previousTags = newPreviousTags;
+            previousStarts = newPreviousStarts;
+            previousEnds = newPreviousEnds;
+        }
+        ends[depth] = end;
+        isSet[depth] = set;
+        previousStarts[depth] = -1;
+        depth++;
+    }
+}
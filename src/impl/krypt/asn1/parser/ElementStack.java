@@ -0,0 +1,139 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.TagClass;
+
+
+/**
+ * The stack of constructed values that are currently open while walking
+ * an encoding. For each level, the tag, the tag class, the offset where a
+ * definite length value ends and an id assigned by the caller are kept in
+ * parallel arrays that grow as needed.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+final class ElementStack {
+    
+    static final long INFINITE = -1;
+    
+    private int[] tags = new int[16];
+    private TagClass[] tagClasses = new TagClass[16];
+    private long[] ends = new long[16];
+    private int[] ids = new int[16];
+    private int depth;
+    
+    int depth() {
+        return depth;
+    }
+    
+    void clear() {
+        depth = 0;
+    }
+    
+    /**
+     * @param end the offset following the value or INFINITE
+     */
+    void push(int tag, TagClass tagClass, long end, int id) {
+        if (depth == ends.length) {
+            int newSize = depth * 2;
+            int[] newTags = new int[newSize];
+            TagClass[] newTagClasses = new TagClass[newSize];
+            long[] newEnds = new long[newSize];
+            int[] newIds = new int[newSize];
+            System.arraycopy(tags, 0, newTags, 0, depth);
+            System.arraycopy(tagClasses, 0, newTagClasses, 0, depth);
+            System.arraycopy(ends, 0, newEnds, 0, depth);
+            System.arraycopy(ids, 0, newIds, 0, depth);
+            tags = newTags;
+            tagClasses = newTagClasses;
+            ends = newEnds;
+            ids = newIds;
+        }
+        tags[depth] = tag;
+        tagClasses[depth] = tagClass;
+        ends[depth] = end;
+        ids[depth] = id;
+        depth++;
+    }
+    
+    /**
+     * @return the depth of the removed value, which remains accessible 
+     * until the next push
+     */
+    int pop() {
+        return --depth;
+    }
+    
+    /**
+     * @return true if the innermost open value has infinite length
+     */
+    boolean isInfiniteLength() {
+        return depth > 0 && ends[depth - 1] == INFINITE;
+    }
+    
+    /**
+     * @return the end of the innermost open definite length value or -1
+     * if it has infinite length or nothing is open
+     */
+    long end() {
+        return depth > 0 ? ends[depth - 1] : INFINITE;
+    }
+    
+    /**
+     * Removes the innermost open value if it has definite length and ends
+     * at position.
+     * 
+     * @return true if a value was removed
+     * @throws ParseException if position lies beyond its end
+     */
+    boolean popDefinite(long position) {
+        if (depth == 0 || ends[depth - 1] == INFINITE)
+            return false;
+        long end = ends[depth - 1];
+        if (position < end)
+            return false;
+        if (position > end)
+            throw new ParseException("Nested value exceeds the length of the enclosing value");
+        depth--;
+        return true;
+    }
+    
+    int getTag(int level) {
+        return tags[level];
+    }
+    
+    TagClass getTagClass(int level) {
+        return tagClasses[level];
+    }
+    
+    int getId(int level) {
+        return ids[level];
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.Header;
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.TagClass;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A non-blocking parser that is fed with arbitrary chunks of input, e.g.
+ * as they arrive from a non-blocking channel. Partially received tags 
+ * and lengths are kept between calls to feed(). Complete headers and
+ * segments of primitive values are reported to a Handler as soon as they
+ * are available, constructed values are descended into. END OF CONTENTS
+ * that do not close an infinite length value are rejected.
+ * 
+ * Once a ParseException has been thrown, the state of the parser is 
+ * undefined and it must not be fed any more.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class FeedParser {
+    
+    public static interface Handler {
+        public void header(int depth, 
+                           int tag, 
+                           TagClass tagClass, 
+                           boolean isConstructed, 
+                           boolean isInfiniteLength, 
+                           long length);
+        /**
+         * Called with the next segment of the current primitive value. The
+         * bytes are only valid for the duration of the callback.
+         */
+        public void value(int depth, byte[] b, int off, int len);
+        /**
+         * Called once an element is complete. For infinite length values,
+         * this is triggered by the closing END OF CONTENTS.
+         */
+        public void end(int depth, int tag, TagClass tagClass);
+    }
+    
+    private static enum State {
+        TAG,
+        COMPLEX_TAG,
+        LENGTH,
+        COMPLEX_LENGTH,
+        VALUE
+    }
+    
+    private final Handler handler;
+    
+    private State state = State.TAG;
+    private long pos;
+    private long headerOffset;
+    private long valueOffset;
+    
+    private int tag;
+    private TagClass tagClass;
+    private boolean isConstructed;
+    private boolean isInfiniteLength;
+    private long length;
+    private int tagOctets;
+    private int lengthOctets;
+    private long valueRemaining;
+    
+    private final ElementStack stack = new ElementStack();
+    
+    private byte[] scratch;
+    
+    public FeedParser(Handler handler) {
+        if (handler == null) throw new NullPointerException();
+        this.handler = handler;
+    }
+    
+    public void feed(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        
+        if (scratch == null)
+            scratch = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, n);
+            feed(scratch, 0, n);
+        }
+    }
+    
+    public void feed(byte[] b, int off, int len) {
+        if (b == null) throw new NullPointerException();
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        
+        int end = off + len;
+        
+        while (off < end) {
+            if (state == State.VALUE) {
+                int n = (int) Math.min(valueRemaining, end - off);
+                handler.value(stack.depth(), b, off, n);
+                off += n;
+                pos += n;
+                valueRemaining -= n;
+                if (valueRemaining == 0)
+                    endElement();
+            }
+            else {
+                processHeaderByte(b[off++]);
+                pos++;
+            }
+        }
+    }
+    
+    /**
+     * @return true if all data fed so far forms complete elements
+     */
+    public boolean isComplete() {
+        return state == State.TAG && stack.depth() == 0;
+    }
+    
+    /**
+     * Signals that no more data will follow.
+     * 
+     * @throws ParseException if an element is still incomplete
+     */
+    public void finish() {
+        if (!isComplete())
+            throw new ParseException("Premature end of value detected.");
+    }
+    
+    /**
+     * @return the offset of the first octet of the header currently being 
+     * parsed or reported
+     */
+    long getHeaderOffset() {
+        return headerOffset;
+    }
+    
+    /**
+     * @return the offset following the last octet of the most recently 
+     * completed header
+     */
+    long getValueOffset() {
+        return valueOffset;
+    }
+    
+    /**
+     * @return true if parts of a header have been fed, but the header is 
+     * not complete yet
+     */
+    boolean isInHeader() {
+        return state != State.TAG && state != State.VALUE;
+    }
+    
+    private void processHeaderByte(byte b) {
+        switch (state) {
+            case TAG:
+                headerOffset = pos;
+                isConstructed = PullHeaderParser.matchMask(b, Header.CONSTRUCTED_MASK);
+                tagClass = TagClass.of((byte)(b & TagClass.PRIVATE.getMask()));
+                if (PullHeaderParser.matchMask(b, Header.COMPLEX_TAG_MASK)) {
+                    tag = 0;
+                    tagOctets = 0;
+                    state = State.COMPLEX_TAG;
+                }
+                else {
+                    tag = b & Header.COMPLEX_TAG_MASK;
+                    state = State.LENGTH;
+                }
+                break;
+            case COMPLEX_TAG:
+                if (tagOctets == 0 && b == Header.INFINITE_LENGTH_MASK)
+                    throw new ParseException("Bits 7 to 1 of the first subsequent octet shall not be 0 for complex tag encodings");
+                if (tag > PullHeaderParser.MAX_TAG)
+                    throw new ParseException("Complex tag too long.");
+                tagOctets++;
+                tag <<= 7;
+                tag |= (b & 0x7f);
+                if (!PullHeaderParser.matchMask(b, Header.INFINITE_LENGTH_MASK))
+                    state = State.LENGTH;
+                break;
+            case LENGTH:
+                length = 0;
+                isInfiniteLength = false;
+                if (b == Header.INFINITE_LENGTH_MASK) {
+                    isInfiniteLength = true;
+                    endHeader();
+                }
+                else if (PullHeaderParser.matchMask(b, Header.INFINITE_LENGTH_MASK)) {
+                    if ((b & 0xff) == 0xff)
+                        throw new ParseException("Initial octet of complex definite length shall not be 0xFF");
+                    lengthOctets = b & 0x7f;
+                    state = State.COMPLEX_LENGTH;
+                }
+                else {
+                    length = b & 0xff;
+                    endHeader();
+                }
+                break;
+            case COMPLEX_LENGTH:
+                if (length > PullHeaderParser.MAX_LENGTH)
+                    throw new ParseException("Definite value length too long.");
+                length <<= 8;
+                length |= (b & 0xff);
+                if (--lengthOctets == 0)
+                    endHeader();
+                break;
+            default:
+                throw new UnsupportedOperationException(state.name());
+        }
+    }
+    
+    /* pos has not yet been incremented for the last header byte */
+    private void endHeader() {
+        long valueStart = pos + 1;
+        valueOffset = valueStart;
+        state = State.TAG;
+        
+        if (isInfiniteLength && !isConstructed)
+            throw new ParseException("Infinite length values must be constructed");
+        
+        if (isEndOfContents()) {
+            if (!stack.isInfiniteLength())
+                throw new ParseException("END OF CONTENTS outside of an infinite length value");
+            if (length != 0)
+                throw new ParseException("END OF CONTENTS must not have a value");
+            int depth = stack.pop();
+            handler.end(depth, stack.getTag(depth), stack.getTagClass(depth));
+            closeDefinite(valueStart);
+            return;
+        }
+        
+        handler.header(stack.depth(), tag, tagClass, isConstructed, isInfiniteLength, length);
+        
+        if (isConstructed) {
+            stack.push(tag, tagClass, isInfiniteLength ? ElementStack.INFINITE : valueStart + length, 0);
+            closeDefinite(valueStart);
+        }
+        else if (length == 0) {
+            handler.end(stack.depth(), tag, tagClass);
+            closeDefinite(valueStart);
+        }
+        else {
+            valueRemaining = length;
+            state = State.VALUE;
+        }
+    }
+    
+    private void endElement() {
+        state = State.TAG;
+        handler.end(stack.depth(), tag, tagClass);
+        closeDefinite(pos);
+    }
+    
+    private boolean isEndOfContents() {
+        return tag == 0x00 && tagClass == TagClass.UNIVERSAL && !isConstructed;
+    }
+    
+    private void closeDefinite(long position) {
+        while (stack.popDefinite(position)) {
+            int depth = stack.depth();
+            handler.end(depth, stack.getTag(depth), stack.getTagClass(depth));
+        }
+    }
+}
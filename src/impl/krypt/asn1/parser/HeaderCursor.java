@@ -0,0 +1,322 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.Header;
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.TagClass;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+/**
+ * A reusable, mutable view on the header that was parsed last. In contrast
+ * to Parser#next, advancing the cursor creates no objects at all: tag, tag
+ * class, constructed flag, length and header length are reported as 
+ * primitives and overwritten with every call to next(). Callers that do
+ * not need to keep headers around may walk an entire structure with zero
+ * garbage per element.
+ * 
+ * The cursor only consumes header bytes. After next() returned true, the
+ * source is positioned at the first byte of the value, which the caller
+ * may either read from the source directly or skip using skipValue().
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class HeaderCursor {
+    
+    private InputStream in;
+    private ArrayInputStream ain;
+    
+    private int tag;
+    private TagClass tagClass;
+    private boolean isConstructed;
+    private boolean isInfiniteLength;
+    private long length;
+    private int headerLength;
+    private long consumed;
+    private byte[] headerBytes;
+    
+    public HeaderCursor() { }
+    
+    public HeaderCursor(InputStream in) {
+        reset(in);
+    }
+    
+    /**
+     * Points the cursor to a new source, allowing to reuse the same
+     * instance for several inputs.
+     */
+    public final void reset(InputStream in) {
+        if (in == null) throw new NullPointerException();
+        
+        this.in = in;
+        this.ain = in instanceof ArrayInputStream ? (ArrayInputStream) in : null;
+        this.tagClass = null;
+        this.headerLength = 0;
+        this.consumed = 0;
+    }
+    
+    /**
+     * Parses the next header from the underlying source.
+     * 
+     * @return false if the end of the source has been reached, true 
+     * otherwise
+     */
+    public boolean next() {
+        if (in == null) throw new IllegalStateException("No source set");
+        
+        headerLength = 0;
+        int read = nextInt();
+        if (read == -1) {
+            tagClass = null;
+            return false;
+        }
+        
+        parseTag((byte) read);
+        parseLength();
+        
+        if (isInfiniteLength && !isConstructed)
+            throw new ParseException("Infinite length values must be constructed");
+        return true;
+    }
+    
+    public int getTag() {
+        return tag;
+    }
+    
+    public TagClass getTagClass() {
+        return tagClass;
+    }
+    
+    public boolean isConstructed() {
+        return isConstructed;
+    }
+    
+    public boolean isInfiniteLength() {
+        return isInfiniteLength;
+    }
+    
+    public long getLength() {
+        return length;
+    }
+    
+    public int getHeaderLength() {
+        return headerLength;
+    }
+    
+    /**
+     * @return the number of bytes consumed by the cursor since the source
+     * was set, i.e. headers and skipped values. Bytes read directly from 
+     * the source by the caller are not accounted for.
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+    
+    /* Enables keeping a copy of the encoding of the current header, for
+     * callers that need to pass headers on as they are. */
+    void setRecording(boolean recording) {
+        this.headerBytes = recording ? new byte[16] : null;
+    }
+    
+    /* The encoding of the current header in the first getHeaderLength()
+     * bytes, only available if recording has been enabled. */
+    byte[] getHeaderBytes() {
+        return headerBytes;
+    }
+    
+    public boolean isEndOfContents() {
+        return tag == 0x00 && tagClass == TagClass.UNIVERSAL && !isConstructed;
+    }
+    
+    /**
+     * Skips the value of the current header without copying it. Values of
+     * infinite length are skipped by walking their nested headers up to 
+     * the closing END OF CONTENTS. The cursor still reports the current
+     * header afterwards.
+     */
+    public void skipValue() {
+        if (tagClass == null) throw new IllegalStateException("No current header");
+        
+        if (!isInfiniteLength) {
+            skip(length);
+            return;
+        }
+        
+        int savedTag = tag;
+        TagClass savedTagClass = tagClass;
+        int savedHeaderLength = headerLength;
+        
+        skipToEndOfContents();
+        
+        tag = savedTag;
+        tagClass = savedTagClass;
+        isConstructed = true;
+        isInfiniteLength = true;
+        length = 0;
+        headerLength = savedHeaderLength;
+    }
+    
+    /* Skips the contents of an infinite length value whose header has 
+     * already been consumed, including the closing END OF CONTENTS. Leaves
+     * the cursor on that END OF CONTENTS header. */
+    void skipToEndOfContents() {
+        int depth = 1;
+        
+        while (depth > 0) {
+            if (!next())
+                throw new ParseException("Premature end of value detected.");
+            if (isInfiniteLength)
+                depth++;
+            else if (isEndOfContents())
+                depth--;
+            else
+                skip(length);
+        }
+    }
+    
+    private void skip(long n) {
+        if (ain != null) {
+            if (ain.limit - ain.pos < n)
+                throw new ParseException("Premature end of value detected.");
+            ain.pos += n;
+            consumed += n;
+            return;
+        }
+        
+        try {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    if (in.read() == -1)
+                        throw new ParseException("Premature end of value detected.");
+                    skipped = 1;
+                }
+                n -= skipped;
+                consumed += skipped;
+            }
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
+    }
+    
+    private int nextInt() {
+        if (ain != null) {
+            if (ain.pos == ain.limit)
+                return -1;
+            int read = ain.buf[ain.pos++] & 0xff;
+            if (headerBytes != null)
+                record(read);
+            headerLength++;
+            consumed++;
+            return read;
+        }
+        
+        try {
+            int read = in.read();
+            if (read != -1) {
+                if (headerBytes != null)
+                    record(read);
+                headerLength++;
+                consumed++;
+            }
+            return read;
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
+    }
+    
+    private void record(int b) {
+        if (headerLength == headerBytes.length)
+            headerBytes = Arrays.copyOf(headerBytes, headerLength * 2);
+        headerBytes[headerLength] = (byte) b;
+    }
+    
+    private byte nextByte() {
+        int read = nextInt();
+        if (read == -1)
+            throw new ParseException("EOF reached.");
+        return (byte) read;
+    }
+    
+    private void parseTag(byte b) {
+        isConstructed = PullHeaderParser.matchMask(b, Header.CONSTRUCTED_MASK);
+        tagClass = TagClass.of((byte)(b & TagClass.PRIVATE.getMask()));
+        
+        if (!PullHeaderParser.matchMask(b, Header.COMPLEX_TAG_MASK)) {
+            tag = b & Header.COMPLEX_TAG_MASK;
+            return;
+        }
+        
+        tag = 0;
+        b = nextByte();
+        if (b == Header.INFINITE_LENGTH_MASK)
+            throw new ParseException("Bits 7 to 1 of the first subsequent octet shall not be 0 for complex tag encodings");
+
+        while (PullHeaderParser.matchMask(b, Header.INFINITE_LENGTH_MASK)) {
+            if (tag > PullHeaderParser.MAX_TAG)
+                throw new ParseException("Complex tag too long.");
+            tag <<= 7;
+            tag |= (b & 0x7f);
+            b = nextByte();
+        }
+
+        //final byte
+        tag <<= 7;
+        tag |= (b & 0x7f);
+    }
+    
+    private void parseLength() {
+        byte b = nextByte();
+        length = 0;
+        isInfiniteLength = false;
+        
+        if (b == Header.INFINITE_LENGTH_MASK) {
+            isInfiniteLength = true;
+            return;
+        }
+        if (!PullHeaderParser.matchMask(b, Header.INFINITE_LENGTH_MASK)) {
+            length = b & 0xff;
+            return;
+        }
+        
+        if ((b & 0xff) == 0xff)
+            throw new ParseException("Initial octet of complex definite length shall not be 0xFF");
+        
+        for (int i = b & 0x7f; i > 0; i--) {
+            if (length > PullHeaderParser.MAX_LENGTH)
+                throw new ParseException("Definite value length too long.");
+            length <<= 8;
+            length |= (nextByte() & 0xff);
+        }
+    }
+}
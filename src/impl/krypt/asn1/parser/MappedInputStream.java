@@ -0,0 +1,233 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.ValueSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * An InputStream over a memory-mapped file. The file is mapped in windows
+ * of at most WINDOW_SIZE bytes, so files larger than 2 GB can be parsed as
+ * well. I/O is left to the OS page cache, skipping merely moves the 
+ * position and values can be handed out as views on the mapping.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class MappedInputStream extends InputStream implements SeekableInput {
+
+    public static final int WINDOW_SIZE = 1 << 26;
+    
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long size;
+    
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long pos;
+    private long mark;
+    
+    public MappedInputStream(FileChannel channel) throws IOException {
+        this(channel, false);
+    }
+    
+    public MappedInputStream(File file) throws IOException {
+        this(new FileInputStream(file).getChannel(), true);
+    }
+    
+    private MappedInputStream(FileChannel channel, boolean ownsChannel) throws IOException {
+        if (channel == null) throw new NullPointerException();
+        
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        try {
+            this.pos = channel.position();
+            this.size = channel.size();
+        }
+        catch (IOException ex) {
+            if (ownsChannel)
+                channel.close();
+            throw ex;
+        }
+        this.mark = pos;
+    }
+    
+    private MappedInputStream(FileChannel channel, boolean ownsChannel, long start, long end) {
+        if (channel == null) throw new NullPointerException();
+        
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.size = end;
+        this.pos = start;
+        this.mark = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= size)
+            return -1;
+        int b = window().get((int) (pos - windowStart)) & 0xff;
+        pos++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (b == null) throw new NullPointerException();
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (pos >= size)
+            return -1;
+        
+        MappedByteBuffer w = window();
+        int windowPos = (int) (pos - windowStart);
+        int toRead = Math.min(len, w.limit() - windowPos);
+        w.position(windowPos);
+        w.get(b, off, toRead);
+        pos += toRead;
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0)
+            return 0;
+        long skipped = Math.min(n, size - pos);
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(size - pos, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = pos;
+    }
+
+    @Override
+    public synchronized void reset() {
+        pos = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (ownsChannel)
+            channel.close();
+    }
+
+    @Override
+    public long position() {
+        return pos;
+    }
+
+    @Override
+    public void position(long position) {
+        if (position < 0 || position > size)
+            throw new IllegalArgumentException("Position out of bounds: " + position);
+        this.pos = position;
+    }
+
+    @Override
+    public long limit() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer slice(long position, int length) {
+        if (position < 0 || length < 0 || position > size - length)
+            throw new ParseException("Premature end of value detected.");
+        
+        if (window != null && 
+            position >= windowStart && 
+            position + length <= windowStart + window.limit()) {
+            ByteBuffer dup = window.duplicate();
+            dup.position((int) (position - windowStart));
+            dup.limit(dup.position() + length);
+            return dup.slice().asReadOnlyBuffer();
+        }
+        
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
+    }
+    
+    /**
+     * Returns the next length bytes as a ValueSource and advances the 
+     * position past them. In contrast to slice(), the region is not 
+     * limited to 2 GB. Streams on the region map the file themselves and
+     * remain valid for as long as the underlying channel is open.
+     */
+    ValueSource region(final long length) {
+        if (length < 0 || length > size - pos)
+            throw new ParseException("Premature end of value detected.");
+        
+        final long start = pos;
+        pos += length;
+        return new ValueSource() {
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new MappedInputStream(channel, false, start, start + length);
+            }
+        };
+    }
+    
+    private MappedByteBuffer window() throws IOException {
+        if (window == null || pos < windowStart || pos >= windowStart + window.limit()) {
+            long windowSize = Math.min(WINDOW_SIZE, size - pos);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowSize);
+            windowStart = pos;
+        }
+        return window;
+    }
+}
@@ -39,56 +39,132 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * 
  * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
  */
 class ParsedHeaderImpl implements ParsedHeader {
+    
+    /* Larger values cannot be held in a single array or buffer */
+    private static final long MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
 
     private final Tag tag;
     private final Length length;
     private final InputStream in;
-    private final PullHeaderParser parser;
     
     private byte[] cachedValue;
+    private ByteBuffer cachedSlice;
     private InputStream cachedValueStream;
     private boolean consumed = false;
 
     ParsedHeaderImpl(Tag tag, 
                      Length length, 
-                     InputStream in,
-                     PullHeaderParser parser) {
+                     InputStream in) {
         if (tag == null) throw new NullPointerException();
         if (length == null) throw new NullPointerException();
         if (in == null) throw new NullPointerException();
-        if (parser == null) throw new NullPointerException();
         
 	this.tag = tag;
 	this.length = length;
 	this.in = in;
-        this.parser = parser;
    }
 
     @Override
     public void skipValue() {
-	getValue();
+        if (cachedValue != null || cachedSlice != null)
+            return;
+        
+        if (consumed) {
+            if (cachedValueStream != null)
+                skipRemaining(cachedValueStream);
+            return;
+        }
+        
+        if (length.isInfiniteLength())
+            new HeaderCursor(in).skipToEndOfContents();
+        else
+            skipRemaining(new DefiniteInputStream(in, length.getLength()));
+        consumed = true;
+    }
+    
+    private static void skipRemaining(InputStream stream) {
+        try {
+            while (stream.skip(Long.MAX_VALUE) > 0 || stream.read() != -1) {
+                //keep on skipping
+            }
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
     }
 
     @Override
     public byte[] getValue() {
 	if (cachedValue == null) {
-            if (consumed)
-                throw new ParseException("The stream has already been consumed");
-            
-            InputStream stream = getValueStream(false);
-            byte[] ret = doGetValue(stream);
+            byte[] ret;
+            if (cachedSlice != null) {
+                ret = new byte[cachedSlice.remaining()];
+                cachedSlice.duplicate().get(ret);
+            }
+            else {
+                if (consumed)
+                    throw new ParseException("The stream has already been consumed");
+
+                if (in instanceof SeekableInput) {
+                    ByteBuffer slice = sliceValue((SeekableInput) in);
+                    ret = new byte[slice.remaining()];
+                    slice.get(ret);
+                }
+                else {
+                    InputStream stream = getValueStream(false);
+                    ret = doGetValue(stream);
+                }
+            }
             cachedValue = ret.length == 0 ? null : ret;
             cachedValueStream = null;
             consumed = true;
         }
         return cachedValue;
     }
+
+    @Override
+    public ByteBuffer getValueSlice() {
+        if (cachedSlice == null) {
+            if (cachedValue == null && !consumed && in instanceof SeekableInput) {
+                cachedSlice = sliceValue((SeekableInput) in);
+                consumed = true;
+            }
+            else {
+                byte[] value = getValue();
+                cachedSlice = ByteBuffer.wrap(value == null ? new byte[0] : value)
+                                        .asReadOnlyBuffer();
+            }
+        }
+        return cachedSlice.duplicate();
+    }
+    
+    /* Returns a view on the value and advances the source past it, for 
+     * infinite length values this includes the closing END OF CONTENTS */
+    private ByteBuffer sliceValue(SeekableInput source) {
+        long start = source.position();
+        long end;
+        
+        if (length.isInfiniteLength()) {
+            new HeaderCursor(in).skipToEndOfContents();
+            end = source.position();
+        }
+        else {
+            end = start + length.getLength();
+        }
+        
+        if (end - start > Integer.MAX_VALUE)
+            throw new ParseException("Value too large for a single buffer");
+        ByteBuffer slice = source.slice(start, (int) (end - start));
+        source.position(end);
+        return slice;
+    }
     
     private byte[] doGetValue(InputStream stream) {
         try {
@@ -119,7 +195,7 @@ class ParsedHeaderImpl implements ParsedHeader {
     
     private InputStream cacheStream(boolean valuesOnly) {
         if (length.isInfiniteLength())
-            return new ChunkInputStream(in, parser, valuesOnly);
+            return new ChunkInputStream(in, valuesOnly);
         else
             return new DefiniteInputStream(in, length.getLength());
     }
@@ -159,9 +235,51 @@ class ParsedHeaderImpl implements ParsedHeader {
 
     @Override
     public Asn1Object getObject() {
+        if (!length.isInfiniteLength() && length.getLength() > MAX_BUFFER_SIZE && cachedValue == null)
+            return getLazyObject();
         Header h = new EncodableHeader(tag, length);
         return new Asn1Object(h, getValue());
     }
+
+    @Override
+    public Asn1Object getObject(int lazyThreshold) {
+        if (lazyThreshold <= 0) throw new IllegalArgumentException("Threshold must be positive");
+        
+        if (length.isInfiniteLength() || length.getLength() < lazyThreshold || cachedValue != null)
+            return getObject();
+        return getLazyObject();
+    }
+    
+    /* Values of oversized elements in a mapped file are read from the 
+     * mapping, values from other streams are moved to a temporary file */
+    private Asn1Object getLazyObject() {
+        Header h = new EncodableHeader(tag, length);
+        if (!consumed && in instanceof MappedInputStream && length.getLength() > MAX_BUFFER_SIZE) {
+            consumed = true;
+            return new Asn1Object(h, ((MappedInputStream) in).region(length.getLength()));
+        }
+        if (cachedSlice != null || (!consumed && in instanceof SeekableInput))
+            return new Asn1Object(h, new BufferValueSource(getValueSlice()));
+        
+        SpillBuffer spill = new SpillBuffer(0);
+        InputStream value = getValueStream(false);
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = value.read(buf)) != -1)
+                spill.write(buf, 0, read);
+            spill.close();
+        }
+        catch (IOException ex) {
+            spill.dispose();
+            throw new ParseException(ex);
+        }
+        catch (RuntimeException ex) {
+            spill.dispose();
+            throw ex;
+        }
+        return new Asn1Object(h, spill);
+    }
     
     @Override
     public void encodeTo(OutputStream out) {
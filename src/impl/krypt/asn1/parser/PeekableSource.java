@@ -0,0 +1,203 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.EncodableHeader;
+import impl.krypt.asn1.Header;
+import impl.krypt.asn1.Length;
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.ParsedHeader;
+import impl.krypt.asn1.Tag;
+import impl.krypt.asn1.TagClass;
+import java.util.Arrays;
+
+
+/**
+ * A source of headers for in-memory encodings that allows to inspect the
+ * next header without consuming it. Peeking parses the header once per 
+ * position, repeated inspections of its tag and tag class are O(1). As 
+ * the source is backed by an array, positions can be saved and restored
+ * at no cost, no bytes are ever cached or copied.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class PeekableSource {
+    
+    private final ArrayInputStream in;
+    private final HeaderCursor cursor;
+    
+    private int peekedAt = -1;
+    private Header peeked;
+    
+    public PeekableSource(byte[] b) {
+        this(new ArrayInputStream(b));
+    }
+    
+    public PeekableSource(ArrayInputStream in) {
+        if (in == null) throw new NullPointerException();
+        
+        this.in = in;
+        this.cursor = new HeaderCursor(in);
+    }
+    
+    /**
+     * @return true if there is another header at the current position
+     */
+    public boolean hasNext() {
+        return peek();
+    }
+    
+    public int peekTag() {
+        requireNext();
+        return cursor.getTag();
+    }
+    
+    public TagClass peekTagClass() {
+        requireNext();
+        return cursor.getTagClass();
+    }
+    
+    public boolean peekIsConstructed() {
+        requireNext();
+        return cursor.isConstructed();
+    }
+    
+    public boolean peekIsInfiniteLength() {
+        requireNext();
+        return cursor.isInfiniteLength();
+    }
+    
+    /**
+     * @return the next header without consuming it, or null if the source 
+     * is exhausted
+     */
+    public Header peekHeader() {
+        if (!peek())
+            return null;
+        if (peeked == null)
+            peeked = new EncodableHeader(peekedTag(), peekedLength());
+        return peeked;
+    }
+    
+    /**
+     * Consumes the next header. The source is positioned at the start of
+     * its value afterwards.
+     * 
+     * @return the next header or null if the source is exhausted
+     */
+    public ParsedHeader next() {
+        if (!peek())
+            return null;
+        Tag tag = peekedTag();
+        Length length = peekedLength();
+        in.pos = peekedAt + cursor.getHeaderLength();
+        return new ParsedHeaderImpl(tag, length, in);
+    }
+    
+    /**
+     * Consumes only the next header, leaving the source positioned at the
+     * start of its value.
+     */
+    public void skipHeader() {
+        requireNext();
+        in.pos = peekedAt + cursor.getHeaderLength();
+    }
+    
+    /**
+     * Consumes the next header and its value.
+     */
+    public void skip() {
+        requireNext();
+        in.pos = peekedAt + cursor.getHeaderLength();
+        cursor.skipValue();
+    }
+    
+    public int getPosition() {
+        return in.pos;
+    }
+    
+    public void rewind(int position) {
+        if (position < in.start || position > in.limit)
+            throw new IllegalArgumentException("Position out of bounds: " + position);
+        in.pos = position;
+    }
+    
+    /**
+     * @return the underlying stream, positioned at the current position of
+     * this source
+     */
+    public ArrayInputStream getStream() {
+        return in;
+    }
+    
+    private boolean peek() {
+        if (peekedAt == in.pos)
+            return true;
+        if (in.pos == in.limit)
+            return false;
+        
+        int start = in.pos;
+        cursor.next();
+        in.pos = start;
+        peekedAt = start;
+        peeked = null;
+        return true;
+    }
+    
+    private void requireNext() {
+        if (!peek())
+            throw new ParseException("Premature end of value detected.");
+    }
+    
+    private int peekedTagLength() {
+        if ((in.buf[peekedAt] & Header.COMPLEX_TAG_MASK) != Header.COMPLEX_TAG_MASK)
+            return 1;
+        int i = peekedAt + 1;
+        while ((in.buf[i] & Header.INFINITE_LENGTH_MASK) != 0)
+            i++;
+        return i - peekedAt + 1;
+    }
+    
+    private Tag peekedTag() {
+        int tagLength = peekedTagLength();
+        if (tagLength == 1)
+            return Tag.forSingleOctet(in.buf[peekedAt]);
+        return new Tag(cursor.getTag(), 
+                       cursor.getTagClass(), 
+                       cursor.isConstructed(), 
+                       Arrays.copyOfRange(in.buf, peekedAt, peekedAt + tagLength));
+    }
+    
+    private Length peekedLength() {
+        int off = peekedAt + peekedTagLength();
+        int end = peekedAt + cursor.getHeaderLength();
+        if (end - off == 1)
+            return Length.forSingleOctet(in.buf[off]);
+        return new Length(cursor.getLength(), false, Arrays.copyOfRange(in.buf, off, end));
+    }
+}
@@ -45,8 +45,8 @@ import java.io.InputStream;
  */
 public class PullHeaderParser implements Parser {
 
-    private static final int MAX_TAG = Integer.MAX_VALUE >> 7;
-    private static final int MAX_LENGTH = Integer.MAX_VALUE >> 8;
+    static final int MAX_TAG = Integer.MAX_VALUE >> 7;
+    static final long MAX_LENGTH = Long.MAX_VALUE >> 8;
     
     public PullHeaderParser() { }
     
@@ -64,7 +64,7 @@ public class PullHeaderParser implements Parser {
         if (length.isInfiniteLength() && !tag.isConstructed())
             throw new ParseException("Infinite length values must be constructed");
         
-	return new ParsedHeaderImpl(tag, length, in, this);
+	return new ParsedHeaderImpl(tag, length, in);
     }
     
     private byte nextByte(InputStream in) {
@@ -83,7 +83,7 @@ public class PullHeaderParser implements Parser {
         }
     }
     
-    private static boolean matchMask(byte test, byte mask) {
+    static boolean matchMask(byte test, byte mask) {
         return ((byte)(test & mask)) == mask;
     }
     
@@ -95,10 +95,7 @@ public class PullHeaderParser implements Parser {
     }
     
     private Tag parsePrimitiveTag(byte b) {
-        int tag = b & Header.COMPLEX_TAG_MASK;
-        boolean isConstructed = matchMask(b, Header.CONSTRUCTED_MASK);
-        TagClass tc = TagClass.of((byte)(b & TagClass.PRIVATE.getMask()));
-        return new Tag(tag, tc, isConstructed, new byte[] { b });
+        return Tag.forSingleOctet(b);
     }
     
     private Tag parseComplexTag(byte b, InputStream in) {
@@ -133,15 +130,15 @@ public class PullHeaderParser implements Parser {
 	byte b = nextByte(in);
 	
         if (b == Header.INFINITE_LENGTH_MASK)
-            return new Length(0, true, new byte[] { b });
+            return Length.forSingleOctet(b);
         else if (matchMask(b, Header.INFINITE_LENGTH_MASK))
             return parseComplexDefiniteLength(b, in);
         else
-            return new Length(b & 0xff, false, new byte[] { b });
+            return Length.forSingleOctet(b);
     }
     
     private Length parseComplexDefiniteLength(byte b, InputStream in) {
-        int len = 0;
+        long len = 0;
         int numOctets = b & 0x7f;
         int off = 0;
         
@@ -153,7 +150,7 @@ public class PullHeaderParser implements Parser {
         encoding[off++] = b;
         
         for (int i=numOctets; i > 0; i--) {
-            if (numOctets > MAX_LENGTH)
+            if (len > MAX_LENGTH)
                 throw new ParseException("Definite value length too long.");
             b = nextByte(in);
             len <<= 8;
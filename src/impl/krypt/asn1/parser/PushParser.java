@@ -0,0 +1,168 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.Asn1Visitor;
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.TagClass;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Push-style counterpart to PullHeaderParser. Walks all elements of a 
+ * source and reports them to an Asn1Visitor without building a tree, 
+ * definite as well as infinite length encodings are supported. Primitive 
+ * values of an ArrayInputStream are reported through a single view on its
+ * backing array, so no objects are created per element. Other 
+ * SeekableInput sources hand out a view per value, for any other stream 
+ * values are read into a scratch buffer that is reused for subsequent 
+ * values.
+ * 
+ * Instances keep state while parsing and must not be shared between 
+ * threads, but they may be reused for several sources.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class PushParser {
+    
+    private final HeaderCursor cursor = new HeaderCursor();
+    private final ElementStack stack = new ElementStack();
+    
+    private byte[] scratch = new byte[8192];
+    private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+    private ByteBuffer arrayView;
+    
+    public PushParser() { }
+    
+    /**
+     * Parses all elements of the source until its end is reached.
+     * 
+     * @throws ParseException if the encoding is malformed, this includes 
+     * END OF CONTENTS that do not close an infinite length value
+     */
+    public void parse(InputStream in, Asn1Visitor visitor) {
+        if (in == null) throw new NullPointerException();
+        if (visitor == null) throw new NullPointerException();
+        
+        cursor.reset(in);
+        stack.clear();
+        arrayView = in instanceof ArrayInputStream ? 
+                    ByteBuffer.wrap(((ArrayInputStream) in).buf).asReadOnlyBuffer() : 
+                    null;
+        long pos = 0;
+        
+        try {
+            while (cursor.next()) {
+                pos += cursor.getHeaderLength();
+
+                if (cursor.isEndOfContents()) {
+                    if (!stack.isInfiniteLength())
+                        throw new ParseException("END OF CONTENTS outside of an infinite length value");
+                    if (cursor.getLength() != 0)
+                        throw new ParseException("END OF CONTENTS must not have a value");
+                    int depth = stack.pop();
+                    visitor.endConstructed(depth, stack.getTag(depth), stack.getTagClass(depth));
+                }
+                else if (cursor.isConstructed()) {
+                    int depth = stack.depth();
+                    stack.push(cursor.getTag(), 
+                               cursor.getTagClass(), 
+                               cursor.isInfiniteLength() ? ElementStack.INFINITE : pos + cursor.getLength(),
+                               0);
+                    visitor.startConstructed(depth, 
+                                             cursor.getTag(), 
+                                             cursor.getTagClass(), 
+                                             cursor.isInfiniteLength());
+                }
+                else {
+                    visitor.primitive(stack.depth(), cursor.getTag(), cursor.getTagClass(), readValue(in));
+                    pos += cursor.getLength();
+                }
+
+                while (stack.popDefinite(pos)) {
+                    int depth = stack.depth();
+                    visitor.endConstructed(depth, stack.getTag(depth), stack.getTagClass(depth));
+                }
+            }
+        }
+        finally {
+            arrayView = null;
+        }
+        
+        if (stack.depth() > 0)
+            throw new ParseException("Premature end of value detected.");
+    }
+    
+    private ByteBuffer readValue(InputStream in) {
+        if (cursor.getLength() > Integer.MAX_VALUE)
+            throw new ParseException("Value too large for a single buffer");
+        int length = (int) cursor.getLength();
+        
+        if (arrayView != null) {
+            ArrayInputStream source = (ArrayInputStream) in;
+            if (length > source.limit - source.pos)
+                throw new ParseException("Premature end of value detected.");
+            arrayView.limit(source.pos + length);
+            arrayView.position(source.pos);
+            source.pos += length;
+            return arrayView;
+        }
+        
+        if (in instanceof SeekableInput) {
+            SeekableInput source = (SeekableInput) in;
+            long start = source.position();
+            ByteBuffer slice = source.slice(start, length);
+            source.position(start + length);
+            return slice;
+        }
+        
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            scratchBuffer = ByteBuffer.wrap(scratch);
+        }
+        
+        try {
+            int off = 0;
+            while (off < length) {
+                int read = in.read(scratch, off, length - off);
+                if (read == -1)
+                    throw new ParseException("Premature end of value detected.");
+                off += read;
+            }
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
+        
+        scratchBuffer.clear();
+        scratchBuffer.limit(length);
+        return scratchBuffer;
+    }
+}
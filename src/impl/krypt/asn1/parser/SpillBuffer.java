@@ -0,0 +1,265 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.ParseException;
+import impl.krypt.asn1.ValueSource;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Vector;
+
+
+/**
+ * An OutputStream that collects its contents in memory until a threshold
+ * is exceeded and continues in a temporary file from then on. Used to 
+ * determine the length of content that has to be written after its
+ * header, and to keep large values out of memory. 
+ * 
+ * Once the contents are complete, a spilled file is memory-mapped and
+ * deleted right away, so a SpillBuffer that is used as ValueSource holds
+ * neither an open file descriptor nor a file on disk. The mapping is 
+ * released together with the buffer.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+class SpillBuffer extends OutputStream implements ValueSource {
+    
+    private final int threshold;
+    
+    private byte[] buf;
+    private int count;
+    private File file;
+    private OutputStream fileOut;
+    private ByteBuffer[] windows;
+    private long size;
+    private boolean closed;
+    
+    SpillBuffer(int threshold) {
+        if (threshold < 0) throw new IllegalArgumentException("Threshold must not be negative");
+        
+        this.threshold = threshold;
+        this.buf = new byte[Math.min(threshold, 64)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (fileOut == null && count == threshold)
+            spill();
+        
+        if (fileOut != null) {
+            fileOut.write(b);
+        }
+        else {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) b;
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (fileOut == null && count + len > threshold)
+            spill();
+        
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        }
+        else {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+        size += len;
+    }
+    
+    /**
+     * Completes the contents. A spilled file is mapped into memory and 
+     * deleted. Further writes are rejected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (file == null)
+            return;
+        
+        try {
+            fileOut.close();
+            fileOut = null;
+            windows = map(file, size);
+        }
+        finally {
+            file.delete();
+            file = null;
+        }
+    }
+    
+    @Override
+    public long getLength() {
+        return size;
+    }
+
+    /**
+     * Returns a stream on the contents, completing them first if this
+     * has not happened yet.
+     */
+    @Override
+    public InputStream openStream() {
+        try {
+            close();
+        }
+        catch (IOException ex) {
+            throw new ParseException(ex);
+        }
+        if (windows == null)
+            return new ArrayInputStream(buf, 0, count);
+        if (windows.length == 1)
+            return new BufferInputStream(windows[0]);
+        
+        Vector<InputStream> streams = new Vector<InputStream>(windows.length);
+        for (ByteBuffer window : windows)
+            streams.add(new BufferInputStream(window));
+        return new SequenceInputStream(streams.elements());
+    }
+    
+    /**
+     * Returns the octet at position of the completed contents.
+     */
+    int byteAt(long position) {
+        if (!closed) throw new IllegalStateException("SpillBuffer has not been closed yet");
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("Position out of bounds: " + position);
+        
+        if (windows == null)
+            return buf[(int) position] & 0xff;
+        ByteBuffer window = windows[(int) (position / MappedInputStream.WINDOW_SIZE)];
+        return window.get((int) (position % MappedInputStream.WINDOW_SIZE)) & 0xff;
+    }
+    
+    /**
+     * Writes length octets of the completed contents starting at position
+     * to out.
+     */
+    void writeTo(OutputStream out, long position, long length) throws IOException {
+        if (!closed) throw new IllegalStateException("SpillBuffer has not been closed yet");
+        if (position < 0 || length < 0 || position > size - length)
+            throw new IndexOutOfBoundsException("Range out of bounds: " + position + ", " + length);
+        
+        if (windows == null) {
+            out.write(buf, (int) position, (int) length);
+            return;
+        }
+        byte[] b = new byte[(int) Math.min(8192, length)];
+        while (length > 0) {
+            ByteBuffer window = windows[(int) (position / MappedInputStream.WINDOW_SIZE)].duplicate();
+            window.position((int) (position % MappedInputStream.WINDOW_SIZE));
+            int n = (int) Math.min(Math.min(b.length, length), window.remaining());
+            window.get(b, 0, n);
+            out.write(b, 0, n);
+            position += n;
+            length -= n;
+        }
+    }
+    
+    /**
+     * Releases the contents. A spilled file that has not been completed
+     * yet is deleted.
+     */
+    void dispose() {
+        closed = true;
+        buf = null;
+        windows = null;
+        if (file == null)
+            return;
+        try {
+            fileOut.close();
+        }
+        catch (IOException ex) {
+            //ignore
+        }
+        fileOut = null;
+        file.delete();
+        file = null;
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("SpillBuffer has already been closed");
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length)
+            buf = Arrays.copyOf(buf, Math.min(threshold, Math.max(capacity, buf.length * 2)));
+    }
+    
+    private void spill() throws IOException {
+        file = File.createTempFile("krypt", ".spill");
+        try {
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+        }
+        catch (IOException ex) {
+            file.delete();
+            file = null;
+            throw ex;
+        }
+        fileOut.write(buf, 0, count);
+        buf = null;
+    }
+    
+    /* Mappings stay valid after their channel is closed */
+    private static ByteBuffer[] map(File file, long size) throws IOException {
+        int n = (int) Math.max(1, (size + MappedInputStream.WINDOW_SIZE - 1) / MappedInputStream.WINDOW_SIZE);
+        ByteBuffer[] ret = new ByteBuffer[n];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long pos = 0;
+            for (int i = 0; i < n; i++) {
+                long windowSize = Math.min(MappedInputStream.WINDOW_SIZE, size - pos);
+                ret[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowSize);
+                pos += windowSize;
+            }
+            return ret;
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * krypt-core API - Java version
+ *
+ * Copyright (c) 2011-2013
+ * Hiroshi Nakamura <nahi@ruby-lang.org>
+ * Martin Bosslet <martin.bosslet@gmail.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package impl.krypt.asn1.parser;
+
+import impl.krypt.asn1.TagClass;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Copies the encoding of a single element to a sink while the underlying 
+ * stream is being read by a parser, e.g. to feed the signed part of a 
+ * certificate into a digest as it is decoded, without having to encode 
+ * it again. The element is selected by a path of child indexes like for
+ * DerPath. Headers are tracked using a FeedParser on the bytes passing 
+ * through; once the element has been copied completely, the remaining 
+ * bytes are passed on without further inspection.
+ * 
+ * @author <a href="mailto:Martin.Bosslet@gmail.com">Martin Bosslet</a>
+ */
+public class SubtreeTeeInputStream extends FilterInputStream {
+    
+    private static final long UNKNOWN = -1;
+    
+    private final OutputStream sink;
+    private final int[] path;
+    private final int[] childCounts;
+    private final FeedParser parser;
+    
+    private int matched;
+    private long start = UNKNOWN;
+    private long end = UNKNOWN;
+    private int targetDepth;
+    private boolean done;
+    private boolean complete;
+    private long pos;
+    
+    private byte[] pending = new byte[16];
+    private long pendingStart;
+    
+    private final byte[] singleByte = new byte[1];
+    
+    public SubtreeTeeInputStream(InputStream in, OutputStream sink, int... path) {
+        super(in);
+        if (in == null) throw new NullPointerException();
+        if (sink == null) throw new NullPointerException();
+        if (path == null) throw new NullPointerException();
+        if (path.length == 0) throw new IllegalArgumentException("Path must not be empty");
+        for (int i : path) {
+            if (i < 0)
+                throw new IllegalArgumentException("Negative index in path: " + i);
+        }
+        this.sink = sink;
+        this.path = path.clone();
+        this.childCounts = new int[path.length];
+        this.parser = new FeedParser(new Tracker());
+    }
+    
+    /**
+     * @return true once the encoding of the selected element has been 
+     * copied to the sink completely
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        if (read != 1)
+            return read;
+        return singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0 && !done)
+            process(b, off, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (done)
+            return in.skip(n);
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (read == -1)
+                break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        //not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+    
+    private void process(byte[] b, int off, int len) throws IOException {
+        long chunkStart = pos;
+        long chunkEnd = pos + len;
+        boolean started = start != UNKNOWN;
+        
+        parser.feed(b, off, len);
+        pos = chunkEnd;
+        
+        if (start != UNKNOWN) {
+            long from = Math.max(start, chunkStart);
+            if (!started && start < chunkStart)
+                sink.write(pending, (int) (start - pendingStart), (int) (chunkStart - start));
+            long to = end == UNKNOWN ? chunkEnd : Math.min(end, chunkEnd);
+            if (to > from)
+                sink.write(b, off + (int) (from - chunkStart), (int) (to - from));
+            if (end != UNKNOWN && end <= chunkEnd) {
+                complete = true;
+                done = true;
+            }
+            pending = null;
+        }
+        else if (!done) {
+            retainHeader(b, off, chunkStart, chunkEnd);
+        }
+    }
+    
+    /* Keeps the octets of a header that is split across reads, it might 
+     * turn out to be the header of the selected element */
+    private void retainHeader(byte[] b, int off, long chunkStart, long chunkEnd) {
+        if (!parser.isInHeader()) {
+            return;
+        }
+        long headerStart = parser.getHeaderOffset();
+        int newLen = (int) (chunkEnd - headerStart);
+        byte[] buf = newLen > pending.length ? new byte[newLen * 2] : pending;
+        if (headerStart < chunkStart) {
+            System.arraycopy(pending, (int) (headerStart - pendingStart), buf, 0, (int) (chunkStart - headerStart));
+            System.arraycopy(b, off, buf, (int) (chunkStart - headerStart), (int) (chunkEnd - chunkStart));
+        }
+        else {
+            System.arraycopy(b, off + (int) (headerStart - chunkStart), buf, 0, newLen);
+        }
+        pending = buf;
+        pendingStart = headerStart;
+    }
+    
+    private class Tracker implements FeedParser.Handler {
+
+        @Override
+        public void header(int depth, int tag, TagClass tagClass, boolean isConstructed, boolean isInfiniteLength, long length) {
+            if (done || start != UNKNOWN || depth != matched)
+                return;
+            if (childCounts[depth]++ != path[depth])
+                return;
+            if (depth == path.length - 1) {
+                start = parser.getHeaderOffset();
+                targetDepth = depth;
+                if (!isInfiniteLength)
+                    end = parser.getValueOffset() + length;
+            }
+            else if (isConstructed) {
+                matched++;
+                childCounts[matched] = 0;
+            }
+            else {
+                done = true;
+            }
+        }
+
+        @Override
+        public void value(int depth, byte[] b, int off, int len) {
+            //nothing to do
+        }
+
+        @Override
+        public void end(int depth, int tag, TagClass tagClass) {
+            if (done)
+                return;
+            if (start != UNKNOWN) {
+                if (end == UNKNOWN && depth == targetDepth)
+                    end = parser.getValueOffset();
+            }
+            else if (depth == matched - 1) {
+                done = true;
+            }
+        }
+    }
+}
@@ -27,14 +27,19 @@
  */
 package org.jruby.ext.krypt;
 
-import java.io.ByteArrayInputStream;
+import impl.krypt.asn1.parser.ArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import org.jruby.Ruby;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.ext.krypt.digest.RubyNativeDigest;
+import org.jruby.ext.krypt.provider.Digest;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.IOInputStream;
+import org.jruby.util.ByteList;
 import org.jruby.util.IOOutputStream;
 
 /**
@@ -66,14 +71,61 @@ public class Streams {
         if (value.respondsTo("read"))
             return Streams.tryWrapAsInputStream(runtime, value);
         else
-            return new ByteArrayInputStream(toDerIfPossible(value).convertToString().getBytes());
+            return asInputStream(toDerIfPossible(value).convertToString());
     }
     
     public static InputStream asInputStreamPem(Ruby runtime, IRubyObject value) {
         if (value.respondsTo("read"))
             return Streams.tryWrapAsInputStream(runtime, value);
         else
-            return new ByteArrayInputStream(toPemIfPossible(value).convertToString().getBytes());
+            return asInputStream(toPemIfPossible(value).convertToString());
+    }
+    
+    /**
+     * Reads directly from the backing array of the String, no bytes are 
+     * copied. The String is marked as shared, so modifying it afterwards
+     * copies its bytes instead of changing data that is still being parsed
+     * or referenced by parsed values.
+     */
+    public static ArrayInputStream asInputStream(RubyString s) {
+        ByteList bytes = s.getByteList();
+        s.setByteListShared();
+        return new ArrayInputStream(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+    }
+    
+    /**
+     * Like asInputStream(RubyString), restricted to length bytes starting 
+     * at offset.
+     */
+    public static ArrayInputStream asInputStream(Ruby runtime, RubyString s, int offset, int length) {
+        ByteList bytes = s.getByteList();
+        int size = bytes.getRealSize();
+        if (offset < 0 || length < 0 || offset > size - length)
+            throw runtime.newArgumentError("Offset " + offset + " and length " + length + " exceed the string size of " + size);
+        s.setByteListShared();
+        return new ArrayInputStream(bytes.getUnsafeBytes(), bytes.getBegin() + offset, length);
+    }
+    
+    /**
+     * Resolves the optional offset and length arguments following a DER 
+     * source: with an offset or a length, the source must be a String, a 
+     * missing offset starts at the beginning and a missing length extends 
+     * to the end of the String. Raises ArgumentError otherwise, or if the 
+     * range exceeds the String.
+     */
+    public static InputStream asInputStreamDer(Ruby runtime, IRubyObject value, IRubyObject offset, IRubyObject length) {
+        if (!isGiven(offset) && !isGiven(length))
+            return asInputStreamDer(runtime, value);
+        if (!(value instanceof RubyString))
+            throw runtime.newArgumentError("Offset and length are only supported for Strings");
+        RubyString s = (RubyString) value;
+        int off = isGiven(offset) ? RubyNumeric.fix2int(offset) : 0;
+        int len = isGiven(length) ? RubyNumeric.fix2int(length) : s.getByteList().getRealSize() - off;
+        return asInputStream(runtime, s, off, len);
+    }
+    
+    private static boolean isGiven(IRubyObject arg) {
+        return arg != null && !arg.isNil();
     }
     
     private static IRubyObject convertData(IRubyObject obj, String convertMeth) {
@@ -88,6 +140,42 @@ public class Streams {
         }
     }
     
+    /**
+     * Everything written to the returned stream updates the digest. Native
+     * digests are updated directly, any other object by calling update with
+     * a String.
+     */
+    public static OutputStream asDigestSink(final Ruby runtime, final IRubyObject digest) {
+        if (digest instanceof RubyNativeDigest) {
+            final Digest md = ((RubyNativeDigest) digest).getDigest();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    md.update(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    md.update(b, off, len);
+                }
+            };
+        }
+        if (!digest.respondsTo("update"))
+            throw runtime.newArgumentError("Digest must respond to update");
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                RubyString data = runtime.newString(new ByteList(b, off, len, true));
+                digest.callMethod(runtime.getCurrentContext(), "update", data);
+            }
+        };
+    }
+    
     public static IRubyObject toDer(IRubyObject obj) {
         return convertData(obj, "to_der");
     }
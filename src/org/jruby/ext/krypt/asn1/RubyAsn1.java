@@ -27,6 +27,7 @@
  */
 package org.jruby.ext.krypt.asn1;
 
+import impl.krypt.asn1.ArrayOutputStream;
 import impl.krypt.asn1.Asn1Object;
 import impl.krypt.asn1.EncodableHeader;
 import impl.krypt.asn1.Header;
@@ -35,8 +36,16 @@ import impl.krypt.asn1.ParsedHeader;
 import impl.krypt.asn1.ParserFactory;
 import impl.krypt.asn1.Tag;
 import impl.krypt.asn1.TagClass;
+import impl.krypt.asn1.ValueSource;
+import impl.krypt.asn1.parser.ArrayInputStream;
+import impl.krypt.asn1.parser.BerToDerConverter;
 import impl.krypt.asn1.parser.CachingInputStream;
+import impl.krypt.asn1.parser.DerPath;
+import impl.krypt.asn1.parser.DerValidator;
+import impl.krypt.asn1.parser.HeaderCursor;
+import impl.krypt.asn1.parser.SubtreeTeeInputStream;
 import impl.krypt.asn1.pem.PemInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -45,13 +54,24 @@ import java.io.OutputStream;
 import java.io.SequenceInputStream;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
+import org.jruby.RubyEncoding;
 import org.jruby.RubyEnumerable;
+import org.jruby.RubyEnumerator;
 import org.jruby.RubyFixnum;
+import org.jruby.RubyIO;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
@@ -99,8 +119,18 @@ public class RubyAsn1 {
     
     private RubyAsn1() {}
     
+    /* handles in-memory as well as arbitrary streams */
     static final impl.krypt.asn1.Parser PARSER = new ParserFactory().newHeaderParser();
     
+    /* minimum length of values that are decoded lazily, 0 if all values
+     * are read into memory */
+    static volatile int lazyThreshold = 0;
+    
+    static Asn1Object objectOf(ParsedHeader h) {
+        int threshold = lazyThreshold;
+        return threshold > 0 ? h.getObject(threshold) : h.getObject();
+    }
+    
     public static interface Asn1Codec {
         public byte[] encode(EncodeContext ctx);
         public IRubyObject decode(DecodeContext ctx);
@@ -156,8 +186,8 @@ public class RubyAsn1 {
     }
     
     public static int compareSetOfOrder(Ruby runtime, byte[] b1, byte[] b2) {
-        Header h1 = PARSER.next(new ByteArrayInputStream(b1));
-        Header h2 = PARSER.next(new ByteArrayInputStream(b2));
+        Header h1 = PARSER.next(new ArrayInputStream(b1));
+        Header h2 = PARSER.next(new ArrayInputStream(b2));
         if (h1 == null || h2 == null) throw Errors.newASN1Error(runtime, "Error while comparing values");
 
         Tag tag1 = h1.getTag();
@@ -168,11 +198,18 @@ public class RubyAsn1 {
             return 1;
         if (t2 == Asn1Tags.END_OF_CONTENTS && tag2.getTagClass().equals(TagClass.UNIVERSAL))
             return -1;
+        int c1 = tag1.getTagClass().ordinal();
+        int c2 = tag2.getTagClass().ordinal();
+        if (c1 != c2)
+            return c1 < c2 ? -1 : 1;
         if (t1 < t2)
             return -1;
         if (t1 > t2)
             return 1;
-
+        return compareEncodings(b1, b2);
+    }
+    
+    private static int compareEncodings(byte[] b1, byte[] b2) {
         int l1 = b1.length, l2 = b2.length, min = l1 < l2 ? l1 : l2;
 
         for (int i=0; i < min; ++i) {
@@ -207,7 +244,7 @@ public class RubyAsn1 {
         if (tagClass.equals(TagClass.UNIVERSAL) && tag > 30)
             throw Errors.newASN1Error(rt, "Universal tags must be <= 30");
         EncodableHeader h = new EncodableHeader(tag, tagClass, isConstructed, isInfinite);
-        data.object = new Asn1Object(h, null);
+        data.object = new Asn1Object(h, (byte[]) null);
         if (!isConstructed)
             data.codec = codecFor(tag, tagClass);
     }
@@ -275,6 +312,19 @@ public class RubyAsn1 {
         private boolean modified = false;
         
         private IRubyObject value = null;
+        /* the components of a constructed element as they are written, e.g.
+         * with sorted SET components, set by the sizing pass. Enumerables
+         * other than Arrays are collected here so they are iterated once. */
+        private RubyArray encodingValue = null;
+        /* the sorted encodings of the components of a modified SET, set by
+         * the sizing pass */
+        private byte[][] setEncodings = null;
+        /* the constructed value this one was decoded from, its cached 
+         * encoding is discarded once this value is modified */
+        private Asn1Data parent = null;
+        /* the components of a decoded constructed value, to detect 
+         * components that were replaced, added or removed in place */
+        private IRubyObject[] decodedComponents = null;
         
         static Asn1Data newAsn1Data(Ruby runtime, Asn1Object object) {
             Tag t = object.getHeader().getTag();
@@ -430,11 +480,11 @@ public class RubyAsn1 {
             if (tag == value)
                 return value;
             int itag = RubyNumeric.fix2int(value);
-            Tag t = object.getHeader().getTag();
+            Tag t = object.getMutableTag();
             t.setTag(itag);
             updateCallback();
             ivs.setInstanceVariable("tag", value);
-            this.modified = true;
+            markModified();
             return value;
         }
         
@@ -450,12 +500,12 @@ public class RubyAsn1 {
             if (getDefaultTag() == -1 && newTc.equals("EXPLICIT"))
                 throw Errors.newASN1Error(ctx.getRuntime(), "Cannot explicitly tag value with unknown default tag");
             TagClass tc = TagClass.forName(newTc);
-            Tag t = object.getHeader().getTag();
+            Tag t = object.getMutableTag();
             t.setTagClass(tc);
             updateCallback();
             handleExplicitTagging(ctx, newTc);
             ivs.setInstanceVariable("tag_class", value);
-            this.modified = true;
+            markModified();
             return value;
         }
         
@@ -465,27 +515,63 @@ public class RubyAsn1 {
             IRubyObject inflen = ivs.getInstanceVariable("infinite_length");
             if (inflen == value)
                 return value;
-            boolean boolVal = value.isTrue() || !value.isNil();
-            Length l = object.getHeader().getLength();
+            boolean boolVal = value.isTrue();
+            Length l = object.getMutableLength();
             l.setInfiniteLength(boolVal);
             ivs.setInstanceVariable("infinite_length", RubyBoolean.newBoolean(ctx.getRuntime(), boolVal));
-            this.modified = true;
+            markModified();
             return value;
         }
         
         @JRubyMethod(name={"value="})
         public IRubyObject set_value(ThreadContext ctx, IRubyObject value) {
-            object.getHeader().getLength().invalidateEncoding();
+            object.getMutableLength().invalidateEncoding();
             object.invalidateValue();
             boolean isConstructed = value.respondsTo("each");
-            object.getHeader().getTag().setConstructed(isConstructed);
+            object.getMutableTag().setConstructed(isConstructed);
             this.value = value;
+            this.decodedComponents = null;
             updateCallback();
             getInstanceVariables().setInstanceVariable("value", value);
-            this.modified = true;
+            markModified();
             return value;
         }
         
+        /* Discards the cached encodings of all values this one was decoded
+         * from, these are encoded again from their components, which reuse
+         * their own encodings as long as they have not been modified */
+        private void markModified() {
+            this.modified = true;
+            for (Asn1Data p = parent; p != null; p = p.parent) {
+                p.modified = true;
+                p.object.invalidateValue();
+                p.decodedComponents = null;
+            }
+        }
+        
+        /* Whether components of this decoded value or of its decoded 
+         * components have been replaced, added or removed in place. Only
+         * values that have been decoded need to be visited, all others can
+         * only change through their setters. */
+        private boolean hasChangedInPlace() {
+            IRubyObject[] components = decodedComponents;
+            if (components == null)
+                return false;
+            if (!(value instanceof RubyArray))
+                return true;
+            RubyArray ary = (RubyArray) value;
+            if (ary.size() != components.length)
+                return true;
+            for (int i=0; i < components.length; i++) {
+                IRubyObject component = ary.entry(i);
+                if (component != components[i])
+                    return true;
+                if (component instanceof Asn1Data && ((Asn1Data) component).hasChangedInPlace())
+                    return true;
+            }
+            return false;
+        }
+        
         @JRubyMethod
         public IRubyObject encode_to(ThreadContext ctx, IRubyObject io) {
             try {
@@ -498,12 +584,54 @@ public class RubyAsn1 {
             }
         }
         
+        /* The encoding is written into an array of exactly the size 
+         * determined by the sizing pass, which then backs the String */
         @JRubyMethod
         public IRubyObject to_der(ThreadContext ctx) {
             Ruby rt = ctx.getRuntime();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            encodeToInternal(ctx, baos);
-            return rt.newString(new ByteList(baos.toByteArray(), false));
+            long length = computeEncodedLength(ctx);
+            if (length > Integer.MAX_VALUE)
+                throw Errors.newSerializeError(rt, "Encoding too large for a String");
+            ArrayOutputStream out = new ArrayOutputStream((int) length);
+            writeEncoding(ctx, out);
+            try {
+                return rt.newString(new ByteList(out.getBuffer(), false));
+            } catch (IllegalStateException ex) {
+                throw Errors.newSerializeError(rt, ex.getMessage());
+            }
+        }
+        
+        /* An IO on the encoded value. Values that were decoded lazily are
+         * streamed from where they are stored, the contents of constructed
+         * values are encoded without their header. */
+        @JRubyMethod
+        public synchronized IRubyObject value_io(ThreadContext ctx) {
+            Ruby rt = ctx.getRuntime();
+            InputStream in;
+            try {
+                long length = computeEncodedLength(ctx);
+                if (object.hasValue()) {
+                    in = object.getValueStream();
+                }
+                else {
+                    long valueLength = length - object.getHeader().getHeaderLength();
+                    if (valueLength > Integer.MAX_VALUE)
+                        throw Errors.newSerializeError(rt, "Encoding too large for a String");
+                    ArrayOutputStream out = new ArrayOutputStream((int) valueLength);
+                    Asn1Constructive.writeContents(ctx, this, out);
+                    this.modified = false;
+                    in = new ArrayInputStream(out.getBuffer());
+                }
+            } catch (RaiseException e) {
+                throw e;
+            } catch (Exception e) {
+                throw Errors.newASN1Error(rt, e.getMessage());
+            }
+            RubyIO io = new RubyIO(rt, in);
+            IRubyObject binaryEncoding = RubyEncoding.newEncoding(rt, 
+                                         rt.getEncodingService().getAscii8bitEncoding());
+            io.set_encoding(ctx, binaryEncoding);
+            return io;
         }
         
         @JRubyMethod(name={"<=>"})
@@ -535,24 +663,47 @@ public class RubyAsn1 {
                     decodeValue(ctx);
                 }
                 object.invalidateValue();
-                Header h = object.getHeader();
-                h.getTag().invalidateEncoding();
-                h.getLength().invalidateEncoding();
+                object.getMutableTag().invalidateEncoding();
+                object.getMutableLength().invalidateEncoding();
             }
         }
         
         final void encodeToInternal(ThreadContext ctx, OutputStream out) {
+            computeEncodedLength(ctx);
+            writeEncoding(ctx, out);
+        }
+        
+        /* Sizing pass: primitive values are encoded and the lengths of all
+         * definite constructed values are computed from their components 
+         * and stored in their headers. Afterwards, writeEncoding writes 
+         * every octet exactly once, directly to the final output.
+         * 
+         * Returns the length of the complete encoding. */
+        final long computeEncodedLength(ThreadContext ctx) {
+            if (object.hasValue()) {
+                if (!hasChangedInPlace())
+                    return object.getEncodedLength();
+                object.invalidateValue();
+                decodedComponents = null;
+                modified = true;
+            }
+            if (explicit) {
+                value = makeExplicit(ctx);
+                object.getMutableTag().setConstructed(true);
+            }
+            if (object.getHeader().getTag().isConstructed())
+                return Asn1Constructive.computeEncodedLength(ctx, this, value);
+            
+            Asn1Primitive.encodeValue(codec, object, new EncodeContext(this, ctx.getRuntime(), value));
+            return object.getEncodedLength();
+        }
+        
+        final void writeEncoding(ThreadContext ctx, OutputStream out) {
             try {
-                if (object.getValue() == null) {
-                    if (explicit) {
-                        value = makeExplicit(ctx);
-                        object.getHeader().getTag().setConstructed(true);
-                    }
-                    encodeTo(ctx, value, out);
-                }
-                else {
+                if (!object.hasValue() && object.getHeader().getTag().isConstructed())
+                    Asn1Constructive.writeEncoding(ctx, this, out);
+                else
                     object.encodeTo(out);
-                }
                 this.modified = false; /* once encoded, modified status is reset */
             } catch (IOException ex) {
                 throw Errors.newSerializeError(ctx.getRuntime(), ex.getMessage());
@@ -575,24 +726,28 @@ public class RubyAsn1 {
             }
         }
         
-        protected final void decodeValue(ThreadContext ctx) {
-            if (object.getHeader().getTag().isConstructed()) {
-                this.value = Asn1Constructive.decodeValue(ctx, object.getValue(), object.getHeader().getLength().isInfiniteLength());
-                /* discard the cached encoding */
-                object.invalidateValue();
-            } else {
-                this.value = Asn1Primitive.decodeValue(codec, new DecodeContext(this, ctx.getRuntime(), object.getValue()));
+        private void adoptComponents() {
+            if (!(value instanceof RubyArray))
+                return;
+            IRubyObject[] components = ((RubyArray) value).toJavaArray();
+            for (IRubyObject component : components) {
+                if (component instanceof Asn1Data)
+                    ((Asn1Data) component).parent = this;
             }
+            this.decodedComponents = components;
         }
         
-        private void encodeTo(ThreadContext ctx, IRubyObject value, OutputStream out) {
-            try {
-                if (object.getHeader().getTag().isConstructed())
-                    Asn1Constructive.encodeTo(ctx, this, value, out);
+        protected final void decodeValue(ThreadContext ctx) {
+            if (object.getHeader().getTag().isConstructed()) {
+                ValueSource source = object.getValueSource();
+                if (source != null)
+                    this.value = Asn1Constructive.decodeValue(ctx, source);
                 else
-                    Asn1Primitive.encodeTo(codec, object, new EncodeContext(this, ctx.getRuntime(), value), out);
-            } catch (IOException ex) {
-                throw Errors.newSerializeError(ctx.getRuntime(), ex.getMessage());
+                    this.value = Asn1Constructive.decodeValue(ctx, object.getValue(), object.getHeader().getLength().isInfiniteLength());
+                /* the encoding stays cached until a component is modified */
+                adoptComponents();
+            } else {
+                this.value = Asn1Primitive.decodeValue(codec, new DecodeContext(this, ctx.getRuntime(), object.getValue()));
             }
         }
     }
@@ -626,10 +781,9 @@ public class RubyAsn1 {
                 return Asn1Codecs.DEFAULT.decode(ctx);
         }
         
-        static void encodeTo(Asn1Codec codec, 
-                             Asn1Object object, 
-                             EncodeContext ctx, 
-                             OutputStream out) throws IOException {
+        static void encodeValue(Asn1Codec codec, 
+                                Asn1Object object, 
+                                EncodeContext ctx) {
             Tag t = object.getHeader().getTag();
             int itag = t.getTag();
             
@@ -639,9 +793,8 @@ public class RubyAsn1 {
             byte[] encoded;
             codec.validate(new ValidateContext(ctx.getReceiver(), ctx.getRuntime(), ctx.getValue()));
             encoded = codec.encode(ctx);
-            object.getHeader().getLength().setLength(encoded == null ? 0 : encoded.length);
+            object.getMutableLength().setLength(encoded == null ? 0 : encoded.length);
             object.setValue(encoded);
-            object.encodeTo(out);
         }
     }
     
@@ -689,26 +842,143 @@ public class RubyAsn1 {
             });
         }
         
+        /* minimum length of a constructed value whose children are parsed
+         * in parallel, 0 if parallel parsing is disabled. Only the headers
+         * are parsed and the values copied on the pool, the Asn1Data and
+         * the decoding of their values remain on the calling thread. */
+        static volatile int parallelThreshold = 0;
+        private static ExecutorService decoders;
+        
         static IRubyObject decodeValue(ThreadContext ctx, byte[] value, boolean infinite) {
             Ruby rt = ctx.getRuntime();
             if (value == null)
                 return rt.newArray();
-            InputStream in = new ByteArrayInputStream(value);
-            List<IRubyObject> list = new ArrayList<IRubyObject>();
-            ParsedHeader h;
             
-            while ((h = RubyAsn1.PARSER.next(in)) != null) {
-                list.add(Asn1Data.newAsn1Data(rt, h.getObject()));
-            }
+            int threshold = parallelThreshold;
+            List<Asn1Object> objects;
+            if (threshold > 0 && value.length >= threshold)
+                objects = parseParallel(rt, value, locateChildren(value));
+            else
+                objects = parseSequential(value);
             
+            int n = objects.size();
             if (infinite) {
                 /* must be EOC, other ChunkedInputStream would have thrown EOF */
-                list.remove(list.size() - 1);
+                n--;
+            }
+            
+            List<IRubyObject> list = new ArrayList<IRubyObject>(n);
+            for (int i=0; i < n; i++) {
+                list.add(Asn1Data.newAsn1Data(rt, objects.get(i)));
+            }
+            return rt.newArray(list);
+        }
+        
+        private static List<Asn1Object> parseSequential(byte[] value) {
+            InputStream in = new ArrayInputStream(value);
+            List<Asn1Object> list = new ArrayList<Asn1Object>();
+            ParsedHeader h;
+            
+            while ((h = RubyAsn1.PARSER.next(in)) != null) {
+                list.add(RubyAsn1.objectOf(h));
             }
+            return list;
+        }
+        
+        static IRubyObject decodeValue(ThreadContext ctx, ValueSource source) {
+            Ruby rt = ctx.getRuntime();
+            InputStream in = source.openStream();
+            List<IRubyObject> list = new ArrayList<IRubyObject>();
+            ParsedHeader h;
             
+            try {
+                while ((h = RubyAsn1.PARSER.next(in)) != null) {
+                    list.add(Asn1Data.newAsn1Data(rt, RubyAsn1.objectOf(h)));
+                }
+            } finally {
+                Streams.tryClose(rt, in);
+            }
             return rt.newArray(list);
         }
         
+        /* Returns the offsets of all children plus the end offset of the
+         * last one */
+        private static int[] locateChildren(byte[] value) {
+            ArrayInputStream in = new ArrayInputStream(value);
+            HeaderCursor cursor = new HeaderCursor(in);
+            int[] offsets = new int[16];
+            int n = 0;
+            
+            while (true) {
+                int offset = in.getPosition();
+                if (n == offsets.length)
+                    offsets = Arrays.copyOf(offsets, n * 2);
+                offsets[n] = offset;
+                if (!cursor.next())
+                    return Arrays.copyOf(offsets, n + 1);
+                n++;
+                cursor.skipValue();
+            }
+        }
+        
+        /* Only the headers of the children are parsed and their values 
+         * copied (or referenced, see lazy_threshold) on the decoder 
+         * threads. The Asn1Data wrapping them are created on the calling 
+         * thread, and their values are decoded there when first accessed. 
+         * Any gain is therefore limited to that share of the work, which 
+         * has not been measured to outweigh the cost of the hand-off. */
+        private static List<Asn1Object> parseParallel(Ruby rt, final byte[] value, final int[] offsets) {
+            int n = offsets.length - 1;
+            int slices = Math.min(n, Runtime.getRuntime().availableProcessors());
+            List<Future<Asn1Object[]>> futures = new ArrayList<Future<Asn1Object[]>>(slices);
+            
+            for (int i=0; i < slices; i++) {
+                final int from = (int) ((long) n * i / slices);
+                final int to = (int) ((long) n * (i + 1) / slices);
+                futures.add(getDecoders().submit(new Callable<Asn1Object[]>() {
+                    @Override
+                    public Asn1Object[] call() {
+                        Asn1Object[] ret = new Asn1Object[to - from];
+                        InputStream in = new ArrayInputStream(value, offsets[from], offsets[to] - offsets[from]);
+                        for (int j=0; j < ret.length; j++) {
+                            ret[j] = RubyAsn1.objectOf(RubyAsn1.PARSER.next(in));
+                        }
+                        return ret;
+                    }
+                }));
+            }
+            
+            List<Asn1Object> list = new ArrayList<Asn1Object>(n);
+            try {
+                for (Future<Asn1Object[]> f : futures) {
+                    list.addAll(Arrays.asList(f.get()));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw Errors.newASN1Error(rt, "Interrupted while decoding");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw Errors.newASN1Error(rt, cause.getMessage());
+            }
+            return list;
+        }
+        
+        private static synchronized ExecutorService getDecoders() {
+            if (decoders == null) {
+                decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "krypt-asn1-decoder");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return decoders;
+        }
+        
         private static void validateConstructed(Ruby runtime, Header h, IRubyObject ary) {
             if (!ary.respondsTo("each"))
                 throw Errors.newASN1Error(runtime, "Value for constructed type must respond to each");
@@ -724,45 +994,157 @@ public class RubyAsn1 {
             }
         }
         
-        static void encodeTo(ThreadContext ctx, Asn1Data data, IRubyObject ary, OutputStream out) throws IOException {
-            Header h = data.getObject().getHeader();
-            validateConstructed(ctx.getRuntime(), h, ary);
-            
-            Length l = h.getLength();
-            /* If the length encoding has been cached or if we have an infinite
-             * length encoding, we don't need to precompute the length and may
-             * start encoding right away */
-            if (!l.hasBeenComputed() && !l.isInfiniteLength()) {
-                /* compute the encoding of the sub elements and update length in header */
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                encodeSubElements(ctx, ary, data, baos);
-                byte[] subEncoding = baos.toByteArray();
-                l.setLength(subEncoding.length);
-                h.encodeTo(out);
-                out.write(subEncoding);
-            } else {
-                data.getObject().getHeader().encodeTo(out);
-                encodeSubElements(ctx, ary, data, out);
-            }
-        }
-        
-        private static void encodeSubElements(ThreadContext ctx, 
-                                              IRubyObject enumerable, 
-                                              Asn1Data data, 
-                                              final OutputStream out) {
+        static long computeEncodedLength(ThreadContext ctx, Asn1Data data, IRubyObject enumerable) {
             Asn1Object object = data.getObject();
-            Tag t = object.getHeader().getTag();
+            Header h = object.getHeader();
+            validateConstructed(ctx.getRuntime(), h, enumerable);
+            
+            RubyArray components = toArray(ctx, enumerable);
+            data.encodingValue = components;
+            data.setEncodings = null;
+            Tag t = h.getTag();
             if (t.getTag() == Asn1Tags.SET &&
                 t.getTagClass().equals(TagClass.UNIVERSAL) &&
                 data.isModified()) {
-                enumerable = sortSetValue(ctx, enumerable);
+                return computeSortedSetLength(ctx, data, components);
             }
+            
+            class Sizing {
+                private long length;
+                private boolean lastIsEoc;
+                
+                void add(ThreadContext tc, IRubyObject sub) {
+                    if (!(sub instanceof Asn1Data))
+                        throw Errors.newError(tc.getRuntime(), "ArgumentError", "Value is not an ASN1Data");
+                    Asn1Data element = (Asn1Data) sub;
+                    length += element.computeEncodedLength(tc);
+                    Tag tag = element.getObject().getHeader().getTag();
+                    lastIsEoc = tag.getTag() == Asn1Tags.END_OF_CONTENTS && tag.getTagClass().equals(TagClass.UNIVERSAL);
+                }
+            }
+            
+            Sizing cb = new Sizing();
+            for (IRubyObject value : components.toJavaArray())
+                cb.add(ctx, value);
+            
+            if (h.getLength().isInfiniteLength()) {
+                if (!cb.lastIsEoc) /* a closing EOC is added while writing */
+                    cb.length += Asn1EndOfContents.newInstance(ctx, cASN1EndOfContents).computeEncodedLength(ctx);
+            }
+            else {
+                object.getMutableLength().setLength(cb.length);
+            }
+            return object.getHeader().getHeaderLength() + cb.length;
+        }
+        
+        /* Components of a modified SET are encoded once each and sorted by 
+         * their encodings in Java, the sorted encodings are kept for writing.
+         * The Array of components is brought into the same order. */
+        private static long computeSortedSetLength(ThreadContext ctx, Asn1Data data, RubyArray ary) {
+            List<SetComponent> components = new ArrayList<SetComponent>();
+            for (IRubyObject value : ary.toJavaArray())
+                components.add(SetComponent.encode(ctx, value));
+            Collections.sort(components);
+            
+            for (int i=0; i < components.size(); i++)
+                ary.store(i, components.get(i).element);
+            
+            Asn1Object object = data.getObject();
             boolean infinite = object.getHeader().getLength().isInfiniteLength();
+            if (infinite && (components.isEmpty() || !components.get(components.size() - 1).isEoc)) {
+                /* add a closing EOC if it was missing */
+                components.add(SetComponent.encode(ctx, Asn1EndOfContents.newInstance(ctx, cASN1EndOfContents)));
+            }
+            
+            byte[][] encodings = new byte[components.size()][];
+            long length = 0;
+            for (int i=0; i < encodings.length; i++) {
+                encodings[i] = components.get(i).encoding;
+                length += encodings[i].length;
+            }
+            data.setEncodings = encodings;
             
+            if (!infinite)
+                object.getMutableLength().setLength(length);
+            return object.getHeader().getHeaderLength() + length;
+        }
+        
+        private static RubyArray toArray(ThreadContext ctx, IRubyObject enumerable) {
             if (enumerable instanceof RubyArray)
-                encodeArray((RubyArray)enumerable, infinite, ctx, out);
-            else
-                encodeEnumerable(enumerable, infinite, ctx, out);
+                return (RubyArray) enumerable;
+            final RubyArray ary = RubyArray.newArray(ctx.getRuntime());
+            RubyEnumerable.callEach(ctx.getRuntime(), ctx, enumerable, new BlockCallback() {
+                @Override
+                public IRubyObject call(ThreadContext tc, IRubyObject[] iros, Block blk) {
+                    ary.append(iros[0]);
+                    return tc.getRuntime().getNil();
+                }
+            });
+            return ary;
+        }
+        
+        private static class SetComponent implements Comparable<SetComponent> {
+            private final Asn1Data element;
+            private final byte[] encoding;
+            private final int tagClass;
+            private final int tag;
+            private final boolean isEoc;
+            
+            private SetComponent(Asn1Data element, byte[] encoding) {
+                this.element = element;
+                this.encoding = encoding;
+                Tag t = element.getObject().getHeader().getTag();
+                this.tagClass = t.getTagClass().ordinal();
+                this.tag = t.getTag();
+                this.isEoc = tag == Asn1Tags.END_OF_CONTENTS && t.getTagClass().equals(TagClass.UNIVERSAL);
+            }
+            
+            static SetComponent encode(ThreadContext ctx, IRubyObject value) {
+                if (!(value instanceof Asn1Data))
+                    throw Errors.newError(ctx.getRuntime(), "ArgumentError", "Value is not an ASN1Data");
+                Asn1Data element = (Asn1Data) value;
+                long length = element.computeEncodedLength(ctx);
+                if (length > Integer.MAX_VALUE)
+                    throw Errors.newSerializeError(ctx.getRuntime(), "SET component too large to be sorted");
+                ArrayOutputStream out = new ArrayOutputStream((int) length);
+                element.writeEncoding(ctx, out);
+                return new SetComponent(element, out.getBuffer());
+            }
+
+            /* same order as compareSetOfOrder, without parsing the headers */
+            @Override
+            public int compareTo(SetComponent other) {
+                if (isEoc || other.isEoc)
+                    return isEoc == other.isEoc ? 0 : (isEoc ? 1 : -1);
+                if (tagClass != other.tagClass)
+                    return tagClass < other.tagClass ? -1 : 1;
+                if (tag != other.tag)
+                    return tag < other.tag ? -1 : 1;
+                return compareEncodings(encoding, other.encoding);
+            }
+        }
+        
+        static void writeEncoding(ThreadContext ctx, Asn1Data data, OutputStream out) throws IOException {
+            data.getObject().getHeader().encodeTo(out);
+            writeContents(ctx, data, out);
+        }
+        
+        static void writeContents(ThreadContext ctx, Asn1Data data, OutputStream out) throws IOException {
+            RubyArray components = data.encodingValue;
+            Asn1Object object = data.getObject();
+            data.encodingValue = null;
+            
+            byte[][] encodings = data.setEncodings;
+            if (encodings != null) {
+                data.setEncodings = null;
+                for (byte[] encoding : encodings)
+                    out.write(encoding);
+                return;
+            }
+            
+            boolean infinite = object.getHeader().getLength().isInfiniteLength();
+            
+            encodeArray(components, infinite, ctx, out);
         }
         
         private static void encodeArray(RubyArray ary,
@@ -775,100 +1157,41 @@ public class RubyAsn1 {
             }
             
             if (infinite) { /* add closing EOC if it was missing */
+                if (values.length == 0) {
+                    encodeEndOfContents(ctx, out);
+                    return;
+                }
                 Asn1Data last = (Asn1Data) values[values.length - 1];
                 Tag tag = last.getObject().getHeader().getTag();
                 if (tag.getTag() != Asn1Tags.END_OF_CONTENTS  || !tag.getTagClass().equals(TagClass.UNIVERSAL)) {
-                    encodeSingleSubElement(ctx, Asn1EndOfContents.newInstance(ctx, cASN1EndOfContents), out);
+                    encodeEndOfContents(ctx, out);
                 }
             }
         }
         
-        private static void encodeEnumerable(IRubyObject enumerable, 
-                                             boolean infinite, 
-                                             ThreadContext ctx, 
-                                             final OutputStream out) {
-            if (infinite)
-                encodeInfiniteEnumerable(enumerable, ctx, out);
-            else
-                encodeDefiniteEnumerable(enumerable, ctx, out);
-        }
-        
-        private static void encodeDefiniteEnumerable(IRubyObject enumerable, ThreadContext ctx, final OutputStream out) {
-            RubyEnumerable.callEach(ctx.getRuntime(), ctx, enumerable, new BlockCallback() {
-                @Override
-                public IRubyObject call(ThreadContext tc, IRubyObject[] iros, Block blk) {
-                    IRubyObject sub = iros[0];
-                    encodeSingleSubElement(tc, sub, out);
-                    return tc.getRuntime().getNil();
-                }
-            });
-        }
-        
-        private static void encodeInfiniteEnumerable(IRubyObject enumerable, ThreadContext ctx, final OutputStream out) {
-            class CheckEocCallback implements BlockCallback {
-                private boolean lastIsEoc;
-
-                @Override
-                public IRubyObject call(ThreadContext tc, IRubyObject[] iros, Block block) {
-                    IRubyObject sub = iros[0];
-                    encodeSingleSubElement(tc, sub, out);
-                    Asn1Data last = (Asn1Data) sub;
-                    Tag tag = last.getObject().getHeader().getTag();
-                    if (tag.getTag() == Asn1Tags.END_OF_CONTENTS  && tag.getTagClass().equals(TagClass.UNIVERSAL)) {
-                        lastIsEoc = true;
-                    } else {
-                        lastIsEoc = false;
-                    }
-                    
-                    return tc.getRuntime().getNil();
-                }
-                
-                public boolean lastIsEoc() { return lastIsEoc; }
-            }
-            Ruby runtime = ctx.getRuntime();
-            CheckEocCallback cb = new CheckEocCallback();
-            RubyEnumerable.callEach(runtime, ctx, enumerable, cb);
-            if (!cb.lastIsEoc()) { /* add a closing EOC if it was missing */
-                encodeSingleSubElement(ctx, Asn1EndOfContents.newInstance(ctx, cASN1EndOfContents), out);
-            }
-        }
-        
         private static void encodeSingleSubElement(ThreadContext ctx, IRubyObject value, OutputStream out) {
             if (!(value instanceof Asn1Data))
                 throw Errors.newError(ctx.getRuntime(), "ArgumentError", "Value is not an ASN1Data");
-            ((Asn1Data)value).encodeToInternal(ctx, out);
+            ((Asn1Data)value).writeEncoding(ctx, out);
         }
         
-        private static IRubyObject sortSetValue(ThreadContext ctx, IRubyObject enumerable) {
-            if (enumerable.respondsTo("sort!")) {
-                enumerable.callMethod(ctx, "sort!");
-                return enumerable;
-            }
-            if (enumerable.respondsTo("sort")) {
-                return enumerable.callMethod(ctx, "sort");
-            }
-            return fallbackSortSetValue(ctx, enumerable);
-        }
-        
-        private static IRubyObject fallbackSortSetValue(ThreadContext ctx, IRubyObject enumerable) {
-            final RubyArray tmp = RubyArray.newArray(ctx.getRuntime());
-            RubyEnumerable.callEach19(ctx.getRuntime(), ctx, enumerable, new BlockCallback() {
-                @Override
-                public IRubyObject call(ThreadContext tc, IRubyObject[] iros, Block blk) {
-                    tmp.add(iros[0]);
-                    return tc.getRuntime().getNil();
-                }
-            });
-            tmp.callMethod(ctx, "sort!");
-            return tmp;
+        private static void encodeEndOfContents(ThreadContext ctx, OutputStream out) {
+            Asn1EndOfContents.newInstance(ctx, cASN1EndOfContents).encodeToInternal(ctx, out);
         }
     }
     
-    @JRubyMethod(meta = true)
-    public static IRubyObject decode_der(ThreadContext ctx, IRubyObject recv, IRubyObject value) {
+    @JRubyMethod(meta = true, required = 1, optional = 2)
+    public static IRubyObject decode_der(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) {
+        Ruby rt = ctx.getRuntime();
+        IRubyObject offset = args.length > 1 ? args[1] : null;
+        IRubyObject length = args.length > 2 ? args[2] : null;
+        InputStream in = null;
+        /* an invalid sub-range is an ArgumentError, not a ParseError */
+        if ((offset != null && !offset.isNil()) || (length != null && !length.isNil()))
+            in = Streams.asInputStreamDer(rt, args[0], offset, length);
         try {
-            Ruby rt = ctx.getRuntime();
-            InputStream in = Streams.asInputStreamDer(rt, value);
+            if (in == null)
+                in = Streams.asInputStreamDer(rt, args[0]);
             IRubyObject ret = generateAsn1Data(rt, in);
             if (ret == null) throw Errors.newASN1Error(ctx.getRuntime(), "Could not decode ASN.1 data");
             return ret;
@@ -877,6 +1200,38 @@ public class RubyAsn1 {
         }
     }
     
+    /* Yields all top-level values found in the source one after the other.
+     * IO sources are read through one buffer for the whole iteration, so
+     * leaving the block early may leave the IO positioned behind the last
+     * value that was yielded. */
+    @JRubyMethod(meta = true)
+    public static IRubyObject decode_der_each(ThreadContext ctx, IRubyObject recv, IRubyObject value, Block block) {
+        Ruby rt = ctx.getRuntime();
+        if (!block.isGiven())
+            return RubyEnumerator.enumeratorize(rt, recv, "decode_der_each", value);
+        
+        InputStream in;
+        try {
+            in = Streams.asInputStreamDer(rt, value);
+            if (!(in instanceof ArrayInputStream))
+                in = new BufferedInputStream(in);
+        } catch(Exception e) {
+            throw Errors.newParseError(rt, e.getMessage());
+        }
+        
+        while (true) {
+            IRubyObject current;
+            try {
+                current = generateAsn1Data(rt, in);
+            } catch(Exception e) {
+                throw Errors.newParseError(rt, e.getMessage());
+            }
+            if (current == null)
+                return recv;
+            block.yield(ctx, current);
+        }
+    }
+    
     @JRubyMethod(meta = true)
     public static IRubyObject decode_pem(ThreadContext ctx, IRubyObject recv, IRubyObject value) {
         try {
@@ -911,11 +1266,145 @@ public class RubyAsn1 {
         return ret;
     }
     
+    @JRubyMethod(meta = true)
+    public static IRubyObject lazy_threshold(ThreadContext ctx, IRubyObject recv) {
+        int threshold = lazyThreshold;
+        if (threshold == 0)
+            return ctx.getRuntime().getNil();
+        return ctx.getRuntime().newFixnum(threshold);
+    }
+    
+    @JRubyMethod(name = "lazy_threshold=", meta = true)
+    public static IRubyObject set_lazy_threshold(ThreadContext ctx, IRubyObject recv, IRubyObject value) {
+        if (value.isNil()) {
+            lazyThreshold = 0;
+            return value;
+        }
+        int threshold = RubyNumeric.fix2int(value);
+        if (threshold <= 0)
+            throw ctx.getRuntime().newArgumentError("Threshold must be positive");
+        lazyThreshold = threshold;
+        return value;
+    }
+    
+    /* Constructed values of at least this many bytes have the headers of
+     * their children parsed and their values copied in parallel. Creating
+     * the Ruby objects and decoding the values is not parallelized. */
+    @JRubyMethod(meta = true)
+    public static IRubyObject parallel_threshold(ThreadContext ctx, IRubyObject recv) {
+        int threshold = Asn1Constructive.parallelThreshold;
+        if (threshold == 0)
+            return ctx.getRuntime().getNil();
+        return ctx.getRuntime().newFixnum(threshold);
+    }
+    
+    @JRubyMethod(name = "parallel_threshold=", meta = true)
+    public static IRubyObject set_parallel_threshold(ThreadContext ctx, IRubyObject recv, IRubyObject value) {
+        if (value.isNil()) {
+            Asn1Constructive.parallelThreshold = 0;
+            return value;
+        }
+        int threshold = RubyNumeric.fix2int(value);
+        if (threshold <= 0)
+            throw ctx.getRuntime().newArgumentError("Threshold must be positive");
+        Asn1Constructive.parallelThreshold = threshold;
+        return value;
+    }
+    
+    @JRubyMethod(meta = true, required = 1, optional = 1)
+    public static IRubyObject ber_to_der(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) {
+        Ruby rt = ctx.getRuntime();
+        try {
+            InputStream in = Streams.asInputStreamDer(rt, args[0]);
+            if (args.length > 1) {
+                OutputStream out = Streams.tryWrapAsOuputStream(rt, args[1]);
+                new BerToDerConverter().convert(in, out);
+                return args[1];
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new BerToDerConverter().convert(in, baos);
+            return rt.newString(new ByteList(baos.toByteArray(), false));
+        } catch(Exception e) {
+            throw Errors.newParseError(rt, e.getMessage());
+        }
+    }
+    
+    @JRubyMethod(meta = true)
+    public static IRubyObject extract(ThreadContext ctx, IRubyObject recv, IRubyObject value, IRubyObject path) {
+        Ruby rt = ctx.getRuntime();
+        int[] childIndexes = toPath(rt, path);
+        try {
+            InputStream in = Streams.asInputStreamDer(rt, value);
+            ParsedHeader h = DerPath.extract(in, childIndexes);
+            if (h == null)
+                return rt.getNil();
+            return Asn1Data.newAsn1Data(rt, objectOf(h));
+        } catch(Exception e) {
+            throw Errors.newParseError(rt, e.getMessage());
+        }
+    }
+    
+    /* Decodes the value like decode_der, feeding the encoding of the element
+     * selected by path into digest while it is being parsed. The path is 
+     * interpreted like for extract. */
+    @JRubyMethod(meta = true)
+    public static IRubyObject decode_der_digest(ThreadContext ctx, IRubyObject recv, IRubyObject value, IRubyObject digest, IRubyObject path) {
+        Ruby rt = ctx.getRuntime();
+        int[] childIndexes = toPath(rt, path);
+        OutputStream sink = Streams.asDigestSink(rt, digest);
+        try {
+            SubtreeTeeInputStream in = new SubtreeTeeInputStream(Streams.asInputStreamDer(rt, value), sink, childIndexes);
+            IRubyObject ret = generateAsn1Data(rt, in);
+            if (ret == null) throw Errors.newASN1Error(rt, "Could not decode ASN.1 data");
+            if (!in.isComplete()) throw Errors.newASN1Error(rt, "Path to digest does not exist");
+            return ret;
+        } catch(Exception e) {
+            throw Errors.newParseError(rt, e.getMessage());
+        }
+    }
+    
+    /* Returns true if value is strictly DER-encoded, raises a ParseError
+     * naming the first violation and its offset otherwise. Nothing is 
+     * decoded. */
+    @JRubyMethod(meta = true)
+    public static IRubyObject validate_der(ThreadContext ctx, IRubyObject recv, IRubyObject value) {
+        Ruby rt = ctx.getRuntime();
+        ArrayInputStream in;
+        if (value.respondsTo("read")) {
+            try {
+                byte[] der = Streams.consume(Streams.tryWrapAsInputStream(rt, value));
+                in = new ArrayInputStream(der != null ? der : new byte[0]);
+            } catch (IOException ex) {
+                throw Errors.newParseError(rt, ex.getMessage());
+            }
+        }
+        else {
+            in = Streams.asInputStream(Streams.toDerIfPossible(value).convertToString());
+        }
+        DerValidator validator = new DerValidator();
+        if (!validator.validate(in))
+            throw Errors.newParseError(rt, validator.getViolation() + " at offset " + validator.getViolationOffset());
+        return rt.getTrue();
+    }
+    
+    private static int[] toPath(Ruby runtime, IRubyObject path) {
+        if (!(path instanceof RubyArray))
+            throw runtime.newArgumentError("Path must be an Array of child indexes");
+        RubyArray ary = (RubyArray) path;
+        if (ary.isEmpty())
+            throw runtime.newArgumentError("Path must not be empty");
+        int[] ret = new int[ary.size()];
+        for (int i=0; i < ret.length; i++) {
+            ret[i] = RubyNumeric.fix2int(ary.entry(i));
+        }
+        return ret;
+    }
+    
     protected static IRubyObject generateAsn1Data(Ruby runtime, InputStream in) {
         ParsedHeader h = PARSER.next(in);
         if (h == null)
             return null;
-        return Asn1Data.newAsn1Data(runtime, h.getObject());
+        return Asn1Data.newAsn1Data(runtime, objectOf(h));
     }
     
     private static RubyClass cASN1Data;
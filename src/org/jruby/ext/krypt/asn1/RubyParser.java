@@ -35,6 +35,7 @@ import org.jruby.Ruby;
 import org.jruby.RubyClass;
 import org.jruby.RubyModule;
 import org.jruby.RubyObject;
+import org.jruby.RubyString;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.ext.krypt.Errors;
 import org.jruby.ext.krypt.Streams;
@@ -79,14 +80,23 @@ public class RubyParser extends RubyObject {
         return this;
     }
     
-    @JRubyMethod()
-    public IRubyObject next(ThreadContext ctx, IRubyObject io) {
+    @JRubyMethod(required = 1, optional = 2)
+    public IRubyObject next(ThreadContext ctx, IRubyObject[] args) {
         Ruby runtime = ctx.getRuntime();
+        IRubyObject io = args[0];
+        if (io instanceof RubyString) {
+            IRubyObject offset = args.length > 1 ? args[1] : null;
+            IRubyObject length = args.length > 2 ? args[2] : null;
+            InputStream in = Streams.asInputStreamDer(runtime, io, offset, length);
+            return parseHeader(runtime, cHeader, RubyAsn1.PARSER, in);
+        }
+        if (args.length > 1)
+            throw Errors.newError(runtime, "ArgumentError", "Offset and length are only supported for Strings");
         InputStream in = asStream(runtime, io);
-        return parseHeader(runtime, cHeader, in);
+        return parseHeader(runtime, cHeader, parser, in);
     }
     
-    private IRubyObject parseHeader(Ruby runtime, RubyClass headerClass, InputStream in) {
+    private static IRubyObject parseHeader(Ruby runtime, RubyClass headerClass, impl.krypt.asn1.Parser parser, InputStream in) {
         try {
             ParsedHeader h = parser.next(in);
             if (h == null) {
@@ -27,9 +27,9 @@
  */
 package org.jruby.ext.krypt.asn1;
 
+import impl.krypt.asn1.ArrayOutputStream;
 import impl.krypt.asn1.Asn1Object;
 import impl.krypt.asn1.Header;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -162,9 +162,12 @@ public class RubyTemplate {
                 Asn1Object object = template.getObject();
                 Header h = object.getHeader();
                 if (object != null && (object.getValue() != null || h.getLength().getLength() == 0)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    object.encodeTo(baos);
-                    return ctx.getRuntime().newString(new ByteList(baos.toByteArray(), false));
+                    long length = object.getEncodedLength();
+                    if (length > Integer.MAX_VALUE)
+                        throw Errors.newSerializeError(ctx.getRuntime(), "Encoding too large for a String");
+                    ArrayOutputStream out = new ArrayOutputStream((int) length);
+                    object.encodeTo(out);
+                    return ctx.getRuntime().newString(new ByteList(out.getBuffer(), false));
                 }
                 throw new UnsupportedOperationException("Not implemented yet.");
             } catch (IOException ex) {
@@ -29,14 +29,18 @@ package org.jruby.ext.krypt.asn1;
 
 import impl.krypt.asn1.Asn1Object;
 import impl.krypt.asn1.Header;
+import impl.krypt.asn1.ParseException;
 import impl.krypt.asn1.ParsedHeader;
 import impl.krypt.asn1.ParserFactory;
 import impl.krypt.asn1.Tag;
 import impl.krypt.asn1.TagClass;
+import impl.krypt.asn1.parser.ArrayInputStream;
+import impl.krypt.asn1.parser.PeekableSource;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Iterator;
 import org.jruby.Ruby;
@@ -112,6 +116,7 @@ public class TemplateParser {
         private final Asn1Template template;
         private final ErrorCollector collector;
         private final Definition definition;
+        private Header innerHeader;
         
         public ParseContext(ThreadContext ctx, IRubyObject recv, Asn1Template template, Definition definition, ErrorCollector collector) {
             this.ctx = ctx;
@@ -129,6 +134,16 @@ public class TemplateParser {
         public MatchContext asMatchContext() {
             return new MatchContext(this);
         }
+        /* The header of the value nested in the template's value, parsed
+         * only once for all alternatives that are matched against it */
+        public Header getInnerHeader() {
+            if (innerHeader == null) {
+                innerHeader = new PeekableSource(template.getObject().getValue()).peekHeader();
+                if (innerHeader == null)
+                    throw new ParseException("Premature end of value detected.");
+            }
+            return innerHeader;
+        }
     }
     
     protected static class MatchContext implements AbstractParseContext {
@@ -149,9 +164,7 @@ public class TemplateParser {
         public void setDefinition(Definition d) { this.definition = d; }
         public Header getHeader() { return header; }
         public void nextHeader() { 
-            Asn1Object object = inner.getTemplate().getObject();
-            InputStream in = new ByteArrayInputStream(object.getValue());
-            this.header = PARSER.next(in);
+            this.header = inner.getInnerHeader();
         }
         public MatchContext createTemporary(Definition d) {
             MatchContext tmp = new MatchContext(inner);
@@ -302,7 +315,8 @@ public class TemplateParser {
             if (tagging != null && tagging.equals("EXPLICIT")) {
                 if (!h.getTag().isConstructed()) 
                     throw collector.addAndReturn(Errors.newASN1Error(ctx.getRuntime(), "Constructive bit not set for explicitly tagged value"));
-                bytes = skipExplicitHeader(object);
+                ArrayInputStream in = skipExplicitHeader(object);
+                bytes = Arrays.copyOfRange(in.getBuffer(), in.getPosition(), in.getLimit());
             } else {
                 if (h.getTag().isConstructed()) 
                     throw collector.addAndReturn(Errors.newASN1Error(ctx.getRuntime(), "Constructive bit set"));
@@ -438,18 +452,17 @@ public class TemplateParser {
         String tagging = definition.getTagging().orNull();
         Asn1Object object = template.getObject();
         Header h = object.getHeader();
-        byte[] bytes;
+        InputStream in;
 
         if (tagging != null && tagging.equals("EXPLICIT"))
-            bytes = skipExplicitHeader(object);
+            in = skipExplicitHeader(object);
         else
-            bytes = object.getValue();
+            in = new ArrayInputStream(object.getValue());
 
         int numParsed = 0;
         int minSize = definition.getMinSize()
                       .orCollectAndThrow(Errors.newASN1Error(runtime, "Constructive type misses 'min_size' entry"), collector);
         int layoutSize = layout.getLength();
-        InputStream in = new ByteArrayInputStream(bytes);
         Asn1Template current = nextTemplate(in);
         if (current == null)
             throw collector.addAndReturn(Errors.newASN1Error(runtime, "Reached end of data"));
@@ -592,14 +605,13 @@ public class TemplateParser {
         Asn1Template template = pctx.getTemplate();
         Asn1Object object = template.getObject();
         Header h = object.getHeader();
-        byte[] bytes;
+        InputStream in;
 
         if (tagging != null && tagging.equals("EXPLICIT"))
-            bytes = skipExplicitHeader(object);
+            in = skipExplicitHeader(object);
         else
-            bytes = object.getValue();
+            in = new ArrayInputStream(object.getValue());
         
-        InputStream in = new ByteArrayInputStream(bytes);
         RubyArray values;
         
         try {
@@ -692,17 +704,17 @@ public class TemplateParser {
             Asn1Template template = pctx.getTemplate();
             Asn1Object object = template.getObject();
             final Header h = object.getHeader();
-            final byte[] bytes;
+            final InputStream value;
 
             if (tagging != null && tagging.equals("EXPLICIT"))
-                bytes = skipExplicitHeader(object);
+                value = skipExplicitHeader(object);
             else
-                bytes = object.getValue();
+                value = new ArrayInputStream(object.getValue());
 
             final Iterator<InputStream> iter = new ArrayList<InputStream>() {{
                 add(new ByteArrayInputStream(h.getTag().getEncoding()));
                 add(new ByteArrayInputStream(h.getLength().getEncoding()));
-                add(new ByteArrayInputStream(bytes));
+                add(value);
             }}.iterator();
             
             InputStream in = new SequenceInputStream(new Enumeration<InputStream>() {
@@ -811,7 +823,7 @@ public class TemplateParser {
             HashAdapter oldOptions = definition.getOptions();
             
             if (enforceExplicitTagging(runtime, definition, collector) != null)
-                template = nextTemplate(new ByteArrayInputStream(template.getObject().getValue()));
+                template = nextTemplate(new ArrayInputStream(template.getObject().getValue()));
             
             template.setDefinition(matchedDef);
             template.setOptions(matchedOpts);
@@ -838,14 +850,12 @@ public class TemplateParser {
         public void decode(ParseContext ctx) { /* NO OP */ }
     };
     
-    private static byte[] skipExplicitHeader(Asn1Object object) {
-        byte[] old = object.getValue();
-        Header h = PARSER.next(new ByteArrayInputStream(old));
-        int headerLen = h.getHeaderLength();
-        int newLen = old.length - headerLen;
-        byte[] bytes = new byte[newLen];
-        System.arraycopy(old, headerLen, bytes, 0, newLen);
-        return bytes;
+    /* Returns the value of an explicitly tagged object without the inner
+     * header, sharing the array of the cached encoding */
+    private static ArrayInputStream skipExplicitHeader(Asn1Object object) {
+        PeekableSource source = new PeekableSource(object.getValue());
+        source.skipHeader();
+        return source.getStream();
     }
     
     private static String determineName(String name) {
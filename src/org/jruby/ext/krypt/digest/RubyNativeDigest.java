@@ -57,6 +57,10 @@ public class RubyNativeDigest extends RubyObject {
         
     private Digest digest;
     
+    public Digest getDigest() {
+        return digest;
+    }
+    
     @JRubyMethod
     public IRubyObject reset(ThreadContext ctx) {
         this.digest.reset();